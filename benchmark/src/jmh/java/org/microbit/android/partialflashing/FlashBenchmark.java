@@ -0,0 +1,185 @@
+package org.microbit.android.partialflashing;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to partial flash a program over simulated links
+ *
+ * Each invocation runs a whole PartialFlashSession, the same code the service runs after
+ * connecting, against a SimulatedPartialFlashPeripheral: connect, enable notifications,
+ * read and check the memory map, transfer and end of flash. The score is the time for
+ * the session. Data throughput, the time in each phase, retransmits, stalls and failed
+ * flashes are reported as secondary results.
+ *
+ * The link models go from a 7.5ms interval on the 2M PHY to a congested 45ms classroom
+ * link. Firmware is either the basic kind, 16 byte packets and one batch at a time, or
+ * one that advertises larger packets, a batch window and packet numbers.
+ *
+ * The lossy models draw losses from a different seed for each iteration, so the score
+ * averages over several loss patterns. Some of them lose the last packet of a batch,
+ * which is only noticed when the batch times out and the session resumes. Those stalls
+ * are part of the real flash time, so they are timed and counted, not avoided.
+ *
+ * (c) 2017 - 2021, Micro:bit Educational Foundation and contributors
+ *
+ * SPDX-License-Identifier: MIT
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 8)
+@Fork(1)
+public class FlashBenchmark {
+    static final String LINK_FAST = "fast";             // 7.5ms, 2M PHY
+    static final String LINK_TYPICAL = "typical";       // 15ms
+    static final String LINK_BUSY = "busy";             // 30ms, some loss
+    static final String LINK_CLASSROOM = "classroom";   // 45ms, congested
+
+    static final String FIRMWARE_BASIC = "basic";
+    static final String FIRMWARE_EXTENDED = "extended";
+
+    @Param({LINK_FAST, LINK_TYPICAL, LINK_BUSY, LINK_CLASSROOM})
+    public String link;
+
+    @Param({FIRMWARE_BASIC, FIRMWARE_EXTENDED})
+    public String firmware;
+
+    // Program size, KB. The last quarter is user code.
+    @Param({"32"})
+    public int size;
+
+    private long seed = 0;
+    private File dir;
+    private File file;
+    private PartialFlashImage image;
+    private SimulatedPartialFlashPeripheral peripheral;
+    private PartialFlashSession session;
+
+    /*
+     * Secondary results, per session
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Report {
+        public double bytesPerSecond;
+        public long connectMs;
+        public long memoryMapMs;
+        public long transferMs;
+        public long retransmits;
+        public long stalls;             // batch timeouts and dropped links, each resumed
+        public long failures;
+
+        @Setup(Level.Iteration)
+        public void clear() {
+            bytesPerSecond = 0;
+            connectMs = 0;
+            memoryMapMs = 0;
+            transferMs = 0;
+            retransmits = 0;
+            stalls = 0;
+            failures = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void prepare() throws IOException {
+        dir = Files.createTempDirectory("flashbenchmark").toFile();
+        file = HexCorpus.create(HexCorpus.MAKECODE, size * 1024, dir);
+        image = PartialFlashImage.locate(file.getPath(), HexUtils.BOARD_V1);
+        if (!image.hasPartialFlashData()) {
+            throw new IllegalStateException("No partial flashing data in " + file);
+        }
+        // Compile the plans up front, as the service does while connecting
+        image.getPlan();
+        image.getPlan(PartialFlashPlan.MAX_PACKET_DATA_SIZE);
+    }
+
+    @TearDown(Level.Trial)
+    public void cleanUp() {
+        file.delete();
+        dir.delete();
+    }
+
+    @Setup(Level.Iteration)
+    public void connect() {
+        long codeStart = image.getPlan().getStartAddress();
+        peripheral = new SimulatedPartialFlashPeripheral(codeStart, size * 1024, image.getFileHash());
+        // A new loss pattern each iteration, the same ones each run
+        setLinkModel(peripheral, link, ++seed);
+        if (FIRMWARE_EXTENDED.equals(firmware)) {
+            peripheral.setCapabilities(PartialFlashPlan.MAX_PACKET_DATA_SIZE, 4, true);
+        }
+
+        session = new PartialFlashSession(new PartialFlashProtocol(peripheral, new FlashTrace()), image);
+        // No latencies have been seen, as for a first flash
+        session.setBatchLatency(new LatencyStats.Series());
+    }
+
+    @TearDown(Level.Iteration)
+    public void disconnect() {
+        peripheral.close();
+    }
+
+    @Benchmark
+    public int flash(Report report) throws InterruptedException {
+        int result = session.run();
+        report.bytesPerSecond = session.getThroughput();
+        report.connectMs = session.getPhaseTime(PartialFlashSession.PHASE_CONNECT);
+        report.memoryMapMs = session.getPhaseTime(PartialFlashSession.PHASE_MEMORY_MAP);
+        report.transferMs = session.getPhaseTime(PartialFlashSession.PHASE_TRANSFER);
+        report.retransmits = session.getRetransmits();
+        report.stalls = session.getResumeCount();
+        report.failures = result == PartialFlashSession.RESULT_SUCCESS ? 0 : 1;
+        return result;
+    }
+
+    /*
+     * @param model one of the LINK_ values
+     * @param seed for the packets lost on lossy links
+     */
+    static void setLinkModel(SimulatedPartialFlashPeripheral peripheral, String model, long seed) {
+        if (LINK_FAST.equals(model)) {
+            peripheral.setConnectionInterval(7.5, 6);
+            peripheral.setMtu(247);
+            peripheral.setConnectTime(60);
+        } else if (LINK_TYPICAL.equals(model)) {
+            peripheral.setConnectionInterval(15, 4);
+            peripheral.setMtu(185);
+            peripheral.setConnectTime(100);
+        } else if (LINK_BUSY.equals(model)) {
+            peripheral.setConnectionInterval(30, 3);
+            peripheral.setMtu(185);
+            peripheral.setNotificationLatency(5);
+            peripheral.setLoss(0.002, 0, seed);
+            peripheral.setConnectTime(250);
+        } else if (LINK_CLASSROOM.equals(model)) {
+            peripheral.setConnectionInterval(45, 2);
+            peripheral.setMtu(185);
+            peripheral.setNotificationLatency(15);
+            peripheral.setLoss(0.005, 0, seed);
+            peripheral.setConnectTime(600);
+        } else {
+            throw new IllegalArgumentException("Unknown link model " + model);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package org.microbit.android.partialflashing;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of hex parsing, payload location and packet encoding
+ *
+ * Each benchmark runs against a generated MakeCode, MicroPython or universal hex file of
+ * each size, or with -p size=real against the real files described in HexCorpus. Run
+ * with the gc profiler, as configured in build.gradle, to see the allocation rate
+ * alongside.
+ *
+ * (c) 2017 - 2021, Micro:bit Educational Foundation and contributors
+ *
+ * SPDX-License-Identifier: MIT
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HexBenchmark {
+    @Param({HexCorpus.MAKECODE, HexCorpus.PYTHON, HexCorpus.UNIVERSAL})
+    public String kind;
+
+    // Program size per board, KB, or HexCorpus.REAL
+    @Param({"64", "128", "256"})
+    public String size;
+
+    private File dir;
+    private String path;
+    private int board;
+    private HexUtils hex;
+    private PartialFlashImage image;
+    private PartialFlashPlan plan;
+
+    private String magic;
+    private String magicRegEx;
+    private long lastAddress;
+    private String record;
+    private byte[] packet;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        if (HexCorpus.REAL.equals(size)) {
+            path = HexCorpus.real(kind).getPath();
+        } else {
+            dir = Files.createTempDirectory("hexbenchmark").toFile();
+            path = HexCorpus.create(kind, Integer.parseInt(size) * 1024, dir).getPath();
+        }
+        board = HexCorpus.board(kind);
+
+        hex = new HexUtils(path, board);
+        image = PartialFlashImage.locate(hex, board);
+        if (!image.hasPartialFlashData()) {
+            throw new IllegalStateException("No partial flashing data in " + path);
+        }
+        plan = image.getPlan();
+
+        if (HexCorpus.PYTHON.equals(kind)) {
+            magic = PartialFlashImage.UPY_MAGIC1;
+            magicRegEx = ".*" + PartialFlashImage.UPY_MAGIC1 + "................" + PartialFlashImage.UPY_MAGIC2 + ".*";
+        } else {
+            magic = PartialFlashImage.PXT_MAGIC;
+            magicRegEx = ".*" + PartialFlashImage.PXT_MAGIC + ".*";
+        }
+        // The last data record
+        for (int i = hex.numOfLines() - 1; i >= 0; i--) {
+            int type = hex.getRecordTypeFromIndex(i);
+            if (type == 0x00 || type == 0x0D) {
+                lastAddress = hex.getRecordAbsoluteAddressFromIndex(i);
+                break;
+            }
+        }
+        record = hex.getDataFromIndex(image.getDataLine());
+        packet = new byte[HexUtils.PACKET_HEADER_SIZE + record.length() / 2];
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (dir != null) {
+            new File(path).delete();
+            dir.delete();
+        }
+    }
+
+    @Benchmark
+    public HexUtils parse() {
+        return new HexUtils(path, board);
+    }
+
+    @Benchmark
+    public int searchForData() throws IOException {
+        return hex.searchForData(magic);
+    }
+
+    @Benchmark
+    public int searchForDataRegEx() throws IOException {
+        return hex.searchForDataRegEx(magicRegEx);
+    }
+
+    @Benchmark
+    public int searchForAddress() throws IOException {
+        return hex.searchForAddress(lastAddress);
+    }
+
+    @Benchmark
+    public long getSegmentAddress() throws IOException {
+        long sum = 0;
+        for (int i = 0; i < hex.numOfLines(); i++) {
+            sum += hex.getSegmentAddress(i);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public byte[] recordToByteArray() {
+        return HexUtils.recordToByteArray(record, 0x1234, 7);
+    }
+
+    @Benchmark
+    public int recordToByteArrayBuffer() {
+        return HexUtils.recordToByteArray(record, 0x1234, 7, packet, 0);
+    }
+
+    // findMakeCodeData() or findPythonData() and their hexGetData() reads, on a parsed file
+    @Benchmark
+    public PartialFlashImage locate() throws IOException {
+        return PartialFlashImage.locate(hex, board);
+    }
+
+    // Parse and locate, as done for each flash without the image cache
+    @Benchmark
+    public PartialFlashImage locateFile() throws IOException {
+        return PartialFlashImage.locate(path, board);
+    }
+
+    @Benchmark
+    public PartialFlashPlan compilePlan() {
+        return PartialFlashPlan.compile(image, PartialFlashPlan.PACKET_DATA_SIZE);
+    }
+
+    @Benchmark
+    public int encodePackets() {
+        int bytes = 0;
+        byte[] buffer = new byte[PartialFlashPlan.MAX_PACKET_SIZE];
+        for (int batch = 0; batch < plan.getBatchCount(); batch++) {
+            for (int count = 0; count < PartialFlashPlan.PACKETS_PER_BATCH; count++) {
+                bytes += plan.encodePacket(batch, count, batch * PartialFlashPlan.PACKETS_PER_BATCH + count, buffer, 0);
+            }
+        }
+        return bytes;
+    }
+}
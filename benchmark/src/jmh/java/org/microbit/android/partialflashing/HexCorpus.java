@@ -0,0 +1,202 @@
+package org.microbit.android.partialflashing;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Hex files for the benchmarks
+ *
+ * Generated rather than checked in, so any size can be measured. The files have the
+ * layout of the real thing: a MakeCode V1 program with the PXT magic and DAL hash, a
+ * MicroPython V1 program with its layout table and file system region, and a universal
+ * hex with a MakeCode program for each board in block format. Data bytes come from a
+ * fixed seed, so each run parses the same files.
+ *
+ * Generated files keep the record format but not the segment layout or marker
+ * positions of editor output, so their scores are for comparing changes. Files saved
+ * from the MakeCode and Python editors can be measured too: put them in benchmark/hex
+ * as makecode.hex, python.hex and universal.hex, and run with the size "real".
+ *
+ * (c) 2017 - 2021, Micro:bit Educational Foundation and contributors
+ *
+ * SPDX-License-Identifier: MIT
+ */
+
+final class HexCorpus {
+    static final String MAKECODE = "makecode";
+    static final String PYTHON = "python";
+    static final String UNIVERSAL = "universal";
+
+    // Size parameter for a real file rather than a generated one
+    static final String REAL = "real";
+    // Directory of the real files, set by build.gradle
+    static final String DIR_PROPERTY = "hexcorpus.dir";
+
+    private static final int RECORD_SIZE = 16;
+    private static final int RECORDS_PER_BLOCK = 32;    // universal hex block
+    private static final int V1_PAGE = 0x400;
+
+    private static final int BLOCK_V1 = 0x9900;
+    private static final int BLOCK_V2 = 0x9903;
+
+    private HexCorpus() {
+    }
+
+    /*
+     * @return the board to parse a file of this kind for
+     */
+    static int board(String kind) {
+        return UNIVERSAL.equals(kind) ? HexUtils.BOARD_V2 : HexUtils.BOARD_V1;
+    }
+
+    /*
+     * @param kind MAKECODE, PYTHON or UNIVERSAL
+     * @return a real hex file of this kind, saved from an editor
+     */
+    static File real(String kind) throws IOException {
+        File file = new File(System.getProperty(DIR_PROPERTY, "hex"), kind + ".hex");
+        if (!file.isFile()) {
+            throw new FileNotFoundException("No real " + kind + " hex at " + file.getAbsolutePath());
+        }
+        return file;
+    }
+
+    /*
+     * @param kind MAKECODE, PYTHON or UNIVERSAL
+     * @param size bytes of program image per board, a multiple of 4096
+     * @param dir where to write the file
+     */
+    static File create(String kind, int size, File dir) throws IOException {
+        File file = new File(dir, kind + "-" + size / 1024 + "k.hex");
+        BufferedWriter out = new BufferedWriter(new FileWriter(file));
+        try {
+            if (MAKECODE.equals(kind)) {
+                writeRecords(out, makeCodeImage(size, 1), -1, 0x00);
+            } else if (PYTHON.equals(kind)) {
+                writeRecords(out, pythonImage(size), -1, 0x00);
+            } else if (UNIVERSAL.equals(kind)) {
+                writeRecords(out, makeCodeImage(size, 1), BLOCK_V1, 0x00);
+                writeRecords(out, makeCodeImage(size, 2), BLOCK_V2, 0x0D);
+            } else {
+                throw new IllegalArgumentException("Unknown hex kind " + kind);
+            }
+            writeRecord(out, 0x01, 0, new byte[0], 0, 0);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    // Program image with the PXT magic and DAL hash three quarters of the way in
+    private static byte[] makeCodeImage(int size, int board) {
+        byte[] image = randomImage(size, board);
+        int magic = size / 4 * 3;
+        byte[] pxt = HexUtils.hexToBytes(PartialFlashImage.PXT_MAGIC);
+        System.arraycopy(pxt, 0, image, magic, pxt.length);
+        for (int i = 0; i < 8; i++) {
+            image[magic + pxt.length + i] = (byte) (0x10 * board + i);
+        }
+        return image;
+    }
+
+    // Program image with a MicroPython layout table and header near the end
+    private static byte[] pythonImage(int size) {
+        byte[] image = randomImage(size, 0);
+        int header = size - V1_PAGE;
+        int table = header - 3 * PartialFlashImage.PYTHON_REGION_SIZE;
+        int fsStart = size / 2;
+        int fsLength = Math.min(0x2000, header - fsStart);
+
+        putRegion(image, table, 1, 0, 0, 0x1000);                    // softdevice
+        putRegion(image, table + 16, 2, 1, 0x1000 / V1_PAGE, fsStart - 0x1000);  // micropython
+        for (int i = 0; i < 8; i++) {
+            image[table + 16 + 8 + i] = (byte) (0xA0 + i);           // verbatim hash
+        }
+        putRegion(image, table + 32, 3, 0, fsStart / V1_PAGE, fsLength);   // file system
+
+        byte[] magic1 = HexUtils.hexToBytes(PartialFlashImage.UPY_MAGIC1);
+        byte[] magic2 = HexUtils.hexToBytes(PartialFlashImage.UPY_MAGIC2);
+        System.arraycopy(magic1, 0, image, header, 4);
+        putUint16(image, header + 4, 1);                                // version
+        putUint16(image, header + 6, 3 * PartialFlashImage.PYTHON_REGION_SIZE);
+        putUint16(image, header + 8, 3);                                // regions
+        putUint16(image, header + 10, 10);                              // log2 page size
+        System.arraycopy(magic2, 0, image, header + 12, 4);
+        return image;
+    }
+
+    private static byte[] randomImage(int size, long seed) {
+        byte[] image = new byte[size];
+        new Random(seed).nextBytes(image);
+        return image;
+    }
+
+    private static void putRegion(byte[] image, int at, int id, int hashType, int startPage, int length) {
+        image[at] = (byte) id;
+        image[at + 1] = (byte) hashType;
+        putUint16(image, at + 2, startPage);
+        putUint16(image, at + 4, length & 0xFFFF);
+        putUint16(image, at + 6, length >>> 16);
+        for (int i = 8; i < 16; i++) {
+            image[at + i] = 0;
+        }
+    }
+
+    private static void putUint16(byte[] data, int at, int value) {
+        data[at] = (byte) value;
+        data[at + 1] = (byte) (value >> 8);
+    }
+
+    /*
+     * Write an image from address 0
+     * @param block universal hex block ID, or -1 for a plain hex file
+     * @param dataType record type of data records
+     */
+    private static void writeRecords(BufferedWriter out, byte[] image, int block, int dataType) throws IOException {
+        int segment = -1;
+        for (int address = 0; address < image.length; address += RECORD_SIZE) {
+            boolean blockStart = block >= 0 && address % (RECORD_SIZE * RECORDS_PER_BLOCK) == 0;
+            if (blockStart || address >>> 16 != segment) {
+                segment = address >>> 16;
+                writeRecord(out, 0x04, 0, new byte[]{(byte) (segment >> 8), (byte) segment}, 0, 2);
+            }
+            if (blockStart) {
+                writeRecord(out, 0x0A, 0, new byte[]{(byte) (block >> 8), (byte) block, (byte) 0xC0, (byte) 0xDE}, 0, 4);
+            }
+            writeRecord(out, dataType, address & 0xFFFF, image, address, RECORD_SIZE);
+            boolean blockEnd = block >= 0 && (address / RECORD_SIZE + 1) % RECORDS_PER_BLOCK == 0;
+            if (blockEnd || (block >= 0 && address + RECORD_SIZE >= image.length)) {
+                byte[] padding = new byte[RECORD_SIZE];
+                Arrays.fill(padding, (byte) 0xFF);
+                writeRecord(out, 0x0B, 0, padding, 0, RECORD_SIZE);
+            }
+        }
+    }
+
+    private static void writeRecord(BufferedWriter out, int type, int address, byte[] data, int offset, int length)
+            throws IOException {
+        int sum = length + (address >> 8) + (address & 0xFF) + type;
+        StringBuilder sb = new StringBuilder(":");
+        appendByte(sb, length);
+        appendByte(sb, address >> 8);
+        appendByte(sb, address);
+        appendByte(sb, type);
+        for (int i = 0; i < length; i++) {
+            appendByte(sb, data[offset + i]);
+            sum += data[offset + i] & 0xFF;
+        }
+        appendByte(sb, -sum);
+        out.write(sb.toString());
+        out.newLine();
+    }
+
+    private static void appendByte(StringBuilder sb, int value) {
+        sb.append(Character.toUpperCase(Character.forDigit((value >> 4) & 0xF, 16)));
+        sb.append(Character.toUpperCase(Character.forDigit(value & 0xF, 16)));
+    }
+}
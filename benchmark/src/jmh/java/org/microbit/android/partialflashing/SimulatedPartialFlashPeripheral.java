@@ -0,0 +1,590 @@
+package org.microbit.android.partialflashing;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A micro:bit partial flashing service simulated in process
+ *
+ * Implements PartialFlashTransport, so PartialFlashProtocol can be run and measured on a
+ * plain JVM. The firmware side answers REGION_INFO_COMMAND with the configured memory
+ * map, collects FLASH_COMMAND packets into batches of 4, writes each batch to a
+ * simulated flash and acknowledges it, and sends RETRANSMIT when a packet number is out
+ * of sequence. After a RETRANSMIT it drops packets until the one numbered 4 after the
+ * start of the dropped batch, which is what the host sends next. As on the micro:bit, a
+ * lost last packet is only noticed when the next batch arrives. The firmware state,
+ * including the packet count, is kept when the link is dropped and made again, as the
+ * micro:bit keeps it until it resets.
+ *
+ * The link is modelled with connection events: writes are carried in the next event
+ * with room, up to packetsPerEvent per event, and notifications in the next event after
+ * the firmware sends them. A write completes when the simulated stack has room for it.
+ * Flash packets and notifications can be lost at random, with a fixed seed so runs
+ * repeat, and the link can be dropped after a number of packets.
+ *
+ * Callbacks run on a single simulator thread. Used by the benchmarks, so it is not part
+ * of the library.
+ *
+ * (c) 2017 - 2021, Micro:bit Educational Foundation and contributors
+ *
+ * SPDX-License-Identifier: MIT
+ */
+
+public class SimulatedPartialFlashPeripheral implements PartialFlashTransport {
+    public static final long DEFAULT_FLASH_SIZE = 0x80000;
+
+    private static final long SD_START = 0;
+    private static final long DAL_START = 0x18000;
+
+    private final ScheduledExecutorService scheduler;
+    private final GattOperationQueue writes = new GattOperationQueue();
+    private final Object lock = new Object();
+    private final Channel uplink = new Channel();
+    private final Channel downlink = new Channel();
+    private final Channel completions = new Channel();
+
+    // Memory map
+    private final long codeStart;
+    private final long codeEnd;
+    private final byte[] dalHash;
+    private final byte[] flash;
+
+    // Link model
+    private long connectionInterval = 15000000; // ns
+    private int packetsPerEvent = 4;
+    private int stackBuffer = 4;                // writes the phone stack holds before the link
+    private long notificationLatency = 0;       // ms, before the next connection event
+    private long flashWriteTime = 2;            // ms per batch
+    private long connectTime = 100;             // ms
+    private double packetLoss = 0;
+    private double notificationLoss = 0;
+    private int mtu = DEFAULT_MTU;
+    private Random random = new Random(0);
+
+    // Firmware capabilities, 0 if not advertised
+    private int maxPacketDataSize = 0;
+    private int batchWindow = 0;
+    private boolean reportsPacketNumbers = false;
+
+    // Link state. Guarded by lock
+    private volatile Listener listener = null;
+    private volatile boolean connected = false;
+    private int generation = 0;                 // deliveries from an earlier link are dropped
+    private long epoch = 0;                     // time of the first connection event, ns
+    private long txEvent = 0;                   // connection event of the last write, ns
+    private int txInEvent = 0;
+    private final ArrayDeque<Long> stackQueue = new ArrayDeque<Long>();
+    private int disconnectAfterPackets = -1;
+
+    // Firmware state, kept across connections. Used on the simulator thread
+    private boolean synced = false;
+    private boolean dropping = false;
+    private int packetCount = 0;
+    private int blockPacketStart = 0;
+    private int blockNum = 0;
+    private long blockAddress = 0;
+    private final byte[] block = new byte[PartialFlashPlan.PACKETS_PER_BATCH * PartialFlashPlan.MAX_PACKET_DATA_SIZE];
+    private int blockLength = 0;
+    private boolean flashComplete = false;
+
+    // Counters
+    private volatile int packetsReceived = 0;
+    private volatile int packetsLost = 0;
+    private volatile int notificationsLost = 0;
+    private volatile int retransmitsSent = 0;
+    private volatile int batchesWritten = 0;
+
+    /*
+     * @param codeStart start of the MakeCode region
+     * @param codeEnd end of the MakeCode region
+     * @param dalHash hash of the DAL region, 16 hex digits
+     */
+    public SimulatedPartialFlashPeripheral(long codeStart, long codeEnd, String dalHash) {
+        this(codeStart, codeEnd, dalHash, DEFAULT_FLASH_SIZE);
+    }
+
+    public SimulatedPartialFlashPeripheral(long codeStart, long codeEnd, String dalHash, long flashSize) {
+        this.codeStart = codeStart;
+        this.codeEnd = codeEnd;
+        this.dalHash = hexToBytes(dalHash);
+        this.flash = new byte[(int) flashSize];
+        Arrays.fill(flash, (byte) 0xFF);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "SimulatedPartialFlashPeripheral");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    // ================================================================
+    // CONFIGURATION
+
+    /*
+     * @param interval ms between connection events, such as 7.5
+     * @param packetsPerEvent writes carried in each connection event
+     */
+    public void setConnectionInterval(double interval, int packetsPerEvent) {
+        this.connectionInterval = (long) (interval * 1000000);
+        this.packetsPerEvent = packetsPerEvent;
+    }
+
+    /*
+     * @param packets writes the phone stack accepts before they are sent
+     */
+    public void setStackBuffer(int packets) {
+        this.stackBuffer = packets;
+    }
+
+    /*
+     * @param latency ms added before each notification waits for a connection event
+     */
+    public void setNotificationLatency(long latency) {
+        this.notificationLatency = latency;
+    }
+
+    /*
+     * @param time ms the firmware takes to write a batch before acknowledging it
+     */
+    public void setFlashWriteTime(long time) {
+        this.flashWriteTime = time;
+    }
+
+    public void setConnectTime(long time) {
+        this.connectTime = time;
+    }
+
+    /*
+     * @param packetLoss probability that a flash packet is lost
+     * @param notificationLoss probability that a notification is lost
+     * @param seed for repeatable runs
+     */
+    public void setLoss(double packetLoss, double notificationLoss, long seed) {
+        this.packetLoss = packetLoss;
+        this.notificationLoss = notificationLoss;
+        this.random = new Random(seed);
+    }
+
+    public void setMtu(int mtu) {
+        this.mtu = mtu;
+    }
+
+    /*
+     * Advertise capabilities in the region info notifications
+     * @param maxPacketDataSize a multiple of 16, or 0
+     * @param batchWindow batches accepted before acknowledging, or 0
+     * @param reportsPacketNumbers append the packet number to acknowledgements
+     */
+    public void setCapabilities(int maxPacketDataSize, int batchWindow, boolean reportsPacketNumbers) {
+        this.maxPacketDataSize = maxPacketDataSize;
+        this.batchWindow = batchWindow;
+        this.reportsPacketNumbers = reportsPacketNumbers;
+    }
+
+    /*
+     * Drop the link once this many more flash packets have been received
+     * @param packets or -1 never to drop it
+     */
+    public void setDisconnectAfterPackets(int packets) {
+        synchronized (lock) {
+            disconnectAfterPackets = packets;
+        }
+    }
+
+    // ================================================================
+    // TRANSPORT
+
+    @Override
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public boolean connect() throws InterruptedException {
+        Thread.sleep(connectTime);
+        synchronized (lock) {
+            generation++;
+            epoch = System.nanoTime();
+            txEvent = epoch;
+            txInEvent = 0;
+            stackQueue.clear();
+            connected = true;
+        }
+        writes.cancel();
+        return true;
+    }
+
+    @Override
+    public boolean enableNotifications() throws InterruptedException {
+        // A write with response takes about two connection events
+        Thread.sleep(2 * connectionInterval / 1000000);
+        return connected;
+    }
+
+    @Override
+    public int write(final byte[] data) throws InterruptedException {
+        if (writes.begin(GattOperationQueue.TYPE_WRITE_CHARACTERISTIC, null, PartialFlashProtocol.DEFAULT_WRITE_TIMEOUT) < 0) {
+            return STATUS_TIMEOUT;
+        }
+        final byte[] value = data.clone();
+        long now = System.nanoTime();
+        long sendAt;
+        long completeAt;
+        final int gen;
+        boolean lost;
+        synchronized (lock) {
+            if (!connected) {
+                writes.fail(STATUS_CANCELLED);
+                return STATUS_CANCELLED;
+            }
+            gen = generation;
+            sendAt = nextTxEvent(now);
+
+            // The write completes once the stack has room for it
+            while (!stackQueue.isEmpty() && stackQueue.peekFirst() <= now) {
+                stackQueue.pollFirst();
+            }
+            stackQueue.addLast(sendAt);
+            completeAt = now;
+            if (stackQueue.size() > stackBuffer) {
+                int i = 0;
+                for (Long t : stackQueue) {
+                    if (i++ == stackQueue.size() - stackBuffer - 1) {
+                        completeAt = t;
+                        break;
+                    }
+                }
+            }
+            lost = value[0] == PartialFlashProtocol.FLASH_COMMAND && packetLoss > 0 && random.nextDouble() < packetLoss;
+        }
+
+        completions.post(completeAt, gen, new Runnable() {
+            @Override
+            public void run() {
+                writes.complete(GattOperationQueue.TYPE_WRITE_CHARACTERISTIC, null, STATUS_SUCCESS);
+            }
+        });
+        if (lost) {
+            packetsLost++;
+        } else {
+            uplink.post(sendAt, gen, new Runnable() {
+                @Override
+                public void run() {
+                    receive(value);
+                }
+            });
+        }
+        return STATUS_SUCCESS;
+    }
+
+    @Override
+    public int awaitWrite(long timeout) throws InterruptedException {
+        return writes.await(timeout);
+    }
+
+    @Override
+    public int getMtu() {
+        return mtu;
+    }
+
+    @Override
+    public void disconnect() {
+        synchronized (lock) {
+            connected = false;
+            generation++;
+        }
+        writes.cancel();
+    }
+
+    /*
+     * Stop the simulator thread
+     */
+    public void close() {
+        disconnect();
+        scheduler.shutdownNow();
+    }
+
+    // ================================================================
+    // RESULTS
+
+    /*
+     * @return a copy of the simulated flash
+     */
+    public byte[] getFlash(long address, int length) {
+        synchronized (flash) {
+            return Arrays.copyOfRange(flash, (int) address, (int) address + length);
+        }
+    }
+
+    /*
+     * @return true once the end of flash command has been received
+     */
+    public boolean isFlashComplete() {
+        return flashComplete;
+    }
+
+    public int getPacketsReceived() {
+        return packetsReceived;
+    }
+
+    public int getPacketsLost() {
+        return packetsLost;
+    }
+
+    public int getNotificationsLost() {
+        return notificationsLost;
+    }
+
+    public int getRetransmitsSent() {
+        return retransmitsSent;
+    }
+
+    public int getBatchesWritten() {
+        return batchesWritten;
+    }
+
+    // ================================================================
+    // FIRMWARE
+
+    // On the simulator thread
+    private void receive(byte[] data) {
+        switch (data[0]) {
+            case PartialFlashProtocol.REGION_INFO_COMMAND:
+                regionInfo(data[1] & 0xFF);
+                break;
+            case PartialFlashProtocol.FLASH_COMMAND:
+                flashData(data);
+                break;
+            case PartialFlashProtocol.END_OF_FLASH_COMMAND:
+                flashComplete = true;
+                break;
+        }
+    }
+
+    private void regionInfo(int id) {
+        long start;
+        long end;
+        byte[] hash = new byte[8];
+        switch (id) {
+            case MemoryMap.REGION_SD:
+                start = SD_START;
+                end = DAL_START;
+                break;
+            case MemoryMap.REGION_DAL:
+                start = DAL_START;
+                end = codeStart;
+                hash = dalHash;
+                break;
+            case MemoryMap.REGION_MAKECODE:
+                start = codeStart;
+                end = codeEnd;
+                break;
+            default:
+                return;
+        }
+        boolean capabilities = maxPacketDataSize > 0 || batchWindow > 0;
+        byte[] value = new byte[capabilities ? 20 : 18];
+        value[0] = PartialFlashProtocol.REGION_INFO_COMMAND;
+        value[1] = (byte) id;
+        putUint32(value, 2, start);
+        putUint32(value, 6, end);
+        System.arraycopy(hash, 0, value, 10, 8);
+        if (capabilities) {
+            value[18] = (byte) (maxPacketDataSize / PartialFlashPlan.PACKET_DATA_SIZE);
+            value[19] = (byte) batchWindow;
+        }
+        notifyHost(value, 0);
+    }
+
+    private void flashData(byte[] data) {
+        packetsReceived++;
+        boolean drop;
+        synchronized (lock) {
+            drop = disconnectAfterPackets == 0;
+            if (disconnectAfterPackets > 0) {
+                disconnectAfterPackets--;
+            }
+            if (drop) {
+                disconnectAfterPackets = -1;
+            }
+        }
+        if (drop) {
+            dropLink();
+            return;
+        }
+
+        int packetNum = data[3] & 0xFF;
+        int expected = synced ? (packetCount + 1) & 0xFF : packetNum;
+        if (packetNum != expected) {
+            if (!dropping) {
+                // Ask for the batch again, numbered after the packets already sent
+                dropping = true;
+                int start = blockNum == 0 ? expected : blockPacketStart;
+                packetCount = (start + PartialFlashPlan.PACKETS_PER_BATCH - 1) & 0xFF;
+                blockNum = 0;
+                retransmitsSent++;
+                notifyHost(new byte[]{PartialFlashProtocol.FLASH_COMMAND, PartialFlashProtocol.PACKET_STATE_RETRANSMIT}, 0);
+            }
+            return;
+        }
+        synced = true;
+        dropping = false;
+        packetCount = packetNum;
+
+        int offset = ((data[1] & 0xFF) << 8) | (data[2] & 0xFF);
+        if (blockNum == 0) {
+            blockPacketStart = packetNum;
+            blockAddress = offset;
+            blockLength = 0;
+        } else if (blockNum == 1) {
+            blockAddress |= (long) offset << 16;
+        }
+        int n = data.length - PartialFlashPlan.PACKET_HEADER_SIZE;
+        System.arraycopy(data, PartialFlashPlan.PACKET_HEADER_SIZE, block, blockLength, n);
+        blockLength += n;
+        blockNum++;
+
+        if (blockNum == PartialFlashPlan.PACKETS_PER_BATCH) {
+            blockNum = 0;
+            synchronized (flash) {
+                if (blockAddress >= codeStart && blockAddress + blockLength <= Math.min(codeEnd, flash.length)) {
+                    System.arraycopy(block, 0, flash, (int) blockAddress, blockLength);
+                }
+            }
+            batchesWritten++;
+            byte[] ack = reportsPacketNumbers
+                    ? new byte[]{PartialFlashProtocol.FLASH_COMMAND, PartialFlashProtocol.PACKET_STATE_SENT, (byte) packetNum}
+                    : new byte[]{PartialFlashProtocol.FLASH_COMMAND, PartialFlashProtocol.PACKET_STATE_SENT};
+            notifyHost(ack, flashWriteTime);
+        }
+    }
+
+    private void dropLink() {
+        synchronized (lock) {
+            connected = false;
+            generation++;
+        }
+        Listener l = listener;
+        if (l != null) {
+            l.onDisconnected();
+        }
+        writes.cancel();
+    }
+
+    /*
+     * Send a notification in the connection event after delay ms
+     */
+    private void notifyHost(final byte[] value, long delay) {
+        long now = System.nanoTime();
+        long sendAt;
+        int gen;
+        synchronized (lock) {
+            if (notificationLoss > 0 && random.nextDouble() < notificationLoss) {
+                notificationsLost++;
+                return;
+            }
+            gen = generation;
+            sendAt = eventAtOrAfter(now + (delay + notificationLatency) * 1000000L);
+        }
+        downlink.post(sendAt, gen, new Runnable() {
+            @Override
+            public void run() {
+                Listener l = listener;
+                if (l != null) {
+                    l.onNotification(value);
+                }
+            }
+        });
+    }
+
+    // ================================================================
+    // LINK
+
+    // Guarded by lock
+    private long eventAtOrAfter(long time) {
+        long interval = connectionInterval;
+        if (interval <= 0 || time <= epoch) {
+            return Math.max(time, epoch);
+        }
+        long events = (time - epoch + interval - 1) / interval;
+        return epoch + events * interval;
+    }
+
+    // Guarded by lock
+    private long nextTxEvent(long now) {
+        long event = Math.max(eventAtOrAfter(now), txEvent);
+        if (event == txEvent) {
+            if (txInEvent >= packetsPerEvent) {
+                event += connectionInterval;
+                txInEvent = 0;
+            }
+        } else {
+            txInEvent = 0;
+        }
+        txEvent = event;
+        txInEvent++;
+        return event;
+    }
+
+    /*
+     * Tasks run in the order they were posted, each no earlier than its time
+     */
+    private class Channel {
+        private final ArrayDeque<Object[]> tasks = new ArrayDeque<Object[]>();
+        private long last = 0;
+
+        void post(long time, int gen, Runnable task) {
+            synchronized (tasks) {
+                last = Math.max(last, time);
+                tasks.addLast(new Object[]{last, gen, task});
+            }
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            }, Math.max(0, time - System.nanoTime()), TimeUnit.NANOSECONDS);
+        }
+
+        private void drain() {
+            while (true) {
+                Object[] next;
+                synchronized (tasks) {
+                    next = tasks.peekFirst();
+                    if (next == null || (Long) next[0] > System.nanoTime()) {
+                        return;
+                    }
+                    tasks.pollFirst();
+                }
+                synchronized (lock) {
+                    if ((Integer) next[1] != generation) {
+                        continue;
+                    }
+                }
+                ((Runnable) next[2]).run();
+            }
+        }
+    }
+
+    private static void putUint32(byte[] data, int idx, long value) {
+        data[idx] = (byte) (value >> 24);
+        data[idx + 1] = (byte) (value >> 16);
+        data[idx + 2] = (byte) (value >> 8);
+        data[idx + 3] = (byte) value;
+    }
+
+    private static byte[] hexToBytes(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+}
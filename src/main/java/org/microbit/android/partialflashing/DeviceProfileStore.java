@@ -0,0 +1,136 @@
+package org.microbit.android.partialflashing;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * What was learnt about each micro:bit on earlier flashes
+ *
+ * Profiles are keyed by device address and kept in shared preferences, so they survive
+ * the service being destroyed. The connect path uses them to skip or overlap handshake
+ * steps, and corrects them whenever a step shows they are stale. Only the most recently
+ * used devices are kept.
+ *
+ * (c) 2017 - 2021, Micro:bit Educational Foundation and contributors
+ *
+ * SPDX-License-Identifier: MIT
+ */
+
+public class DeviceProfileStore {
+    public static final int DEFAULT_MAX_DEVICES = 32;
+
+    private static final String PREFERENCES_NAME = "org.microbit.android.partialflashing.devices";
+    private static final String VERSION = "2";
+    private static final String SEPARATOR = "|";
+
+    public static class Profile {
+        public final String address;
+        public int hardwareType = 0;                    // 0 if unknown
+        public boolean hasPartialFlashService = false;  // checked against discovery, to spot a stale profile
+        public boolean serviceChangedEnabled = false;   // Service Changed indications enabled
+        public boolean notificationsEnabled = false;    // partial flashing notifications enabled
+        public long lastUsed = 0;
+
+        public Profile(String address) {
+            this.address = address;
+        }
+    }
+
+    private final SharedPreferences preferences;
+    private final int maxDevices;
+
+    public DeviceProfileStore(Context context) {
+        this(context, DEFAULT_MAX_DEVICES);
+    }
+
+    public DeviceProfileStore(Context context, int maxDevices) {
+        this.preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        this.maxDevices = maxDevices;
+    }
+
+    /*
+     * @param address device address
+     * @return the stored profile, or null if the device has not been seen
+     */
+    public synchronized Profile get(String address) {
+        if (address == null) {
+            return null;
+        }
+        return decode(address, preferences.getString(address, null));
+    }
+
+    /*
+     * Store a profile, replacing the least recently used if the store is full
+     */
+    public synchronized void put(Profile profile) {
+        profile.lastUsed = System.currentTimeMillis();
+        SharedPreferences.Editor editor = preferences.edit();
+        editor.putString(profile.address, encode(profile));
+
+        Map<String, Object> all = new HashMap<String, Object>(preferences.getAll());
+        int count = all.containsKey(profile.address) ? all.size() : all.size() + 1;
+        while (count > maxDevices) {
+            String oldest = null;
+            long oldestUsed = Long.MAX_VALUE;
+            for (Map.Entry<String, Object> entry : all.entrySet()) {
+                if (entry.getKey().equals(profile.address)) {
+                    continue;
+                }
+                Profile p = entry.getValue() instanceof String ? decode(entry.getKey(), (String) entry.getValue()) : null;
+                long used = p != null ? p.lastUsed : 0;
+                if (used < oldestUsed) {
+                    oldest = entry.getKey();
+                    oldestUsed = used;
+                }
+            }
+            if (oldest == null) {
+                break;
+            }
+            editor.remove(oldest);
+            all.remove(oldest);
+            count--;
+        }
+        editor.apply();
+    }
+
+    public synchronized void remove(String address) {
+        preferences.edit().remove(address).apply();
+    }
+
+    public synchronized void clear() {
+        preferences.edit().clear().apply();
+    }
+
+    private static String encode(Profile p) {
+        return VERSION
+                + SEPARATOR + p.hardwareType
+                + SEPARATOR + (p.hasPartialFlashService ? 1 : 0)
+                + SEPARATOR + (p.serviceChangedEnabled ? 1 : 0)
+                + SEPARATOR + (p.notificationsEnabled ? 1 : 0)
+                + SEPARATOR + p.lastUsed;
+    }
+
+    private static Profile decode(String address, String value) {
+        if (value == null) {
+            return null;
+        }
+        String[] fields = value.split("\\|", -1);
+        if (fields.length != 6 || !fields[0].equals(VERSION)) {
+            return null;
+        }
+        try {
+            Profile p = new Profile(address);
+            p.hardwareType = Integer.parseInt(fields[1]);
+            p.hasPartialFlashService = fields[2].equals("1");
+            p.serviceChangedEnabled = fields[3].equals("1");
+            p.notificationsEnabled = fields[4].equals("1");
+            p.lastUsed = Long.parseLong(fields[5]);
+            return p;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package org.microbit.android.partialflashing;
+
+import java.util.Locale;
+
+/**
+ * A ring buffer of flashing events for diagnostics
+ *
+ * Events are an event code and two int arguments, recorded with a timestamp into arrays
+ * allocated up front, so recording builds no strings and allocates nothing. When the
+ * buffer is full the oldest events are overwritten. The events are only formatted by
+ * dump(), when a failure is reported or the host app asks for them.
+ *
+ * (c) 2017 - 2021, Micro:bit Educational Foundation and contributors
+ *
+ * SPDX-License-Identifier: MIT
+ */
+
+public class FlashTrace {
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    // Events and their arguments
+    public static final int EVENT_CONNECTION_STATE = 0;  // newState, status
+    public static final int EVENT_WRITE = 1;             // write status, write type
+    public static final int EVENT_WRITE_COMPLETE = 2;    // GATT status
+    public static final int EVENT_WRITE_WAIT = 3;        // write status, milliseconds waited
+    public static final int EVENT_NOTIFICATION = 4;      // first 4 bytes (big endian), length
+    public static final int EVENT_PACKET = 5;            // packet number, batch
+    public static final int EVENT_BATCH = 6;             // batch, notification state
+    public static final int EVENT_TIMEOUT = 7;           // batch, milliseconds
+    public static final int EVENT_RESULT = 8;            // PF result
+
+    private static final String[] EVENT_NAMES = {
+            "CONNECTION_STATE",
+            "WRITE",
+            "WRITE_COMPLETE",
+            "WRITE_WAIT",
+            "NOTIFICATION",
+            "PACKET",
+            "BATCH",
+            "TIMEOUT",
+            "RESULT",
+    };
+
+    private volatile boolean enabled = true;
+    private final int mask;
+    private final long[] times;
+    private final int[] events;
+    private final int[] args0;
+    private final int[] args1;
+    private long count = 0;
+
+    public FlashTrace() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /*
+     * @param capacity number of events kept, rounded up to a power of two
+     */
+    public FlashTrace(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        mask = size - 1;
+        times = new long[size];
+        events = new int[size];
+        args0 = new int[size];
+        args1 = new int[size];
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /*
+     * Record an event
+     * @param event one of the EVENT_ codes
+     * @param arg0 first argument
+     * @param arg1 second argument
+     */
+    public void event(int event, int arg0, int arg1) {
+        if (!enabled) {
+            return;
+        }
+        long time = System.nanoTime();
+        synchronized (this) {
+            int i = (int) (count++ & mask);
+            times[i] = time;
+            events[i] = event;
+            args0[i] = arg0;
+            args1[i] = arg1;
+        }
+    }
+
+    public synchronized void clear() {
+        count = 0;
+    }
+
+    /*
+     * Format the events, oldest first
+     * @return one line per event, with the time since the first event kept
+     */
+    public synchronized String dump() {
+        int n = (int) Math.min(count, mask + 1);
+        StringBuilder sb = new StringBuilder(n * 40);
+        if (count > n) {
+            sb.append("... ").append(count - n).append(" earlier events dropped\n");
+        }
+        long first = count - n;
+        long t0 = n > 0 ? times[(int) (first & mask)] : 0;
+        for (long e = first; e < count; e++) {
+            int i = (int) (e & mask);
+            String name = events[i] >= 0 && events[i] < EVENT_NAMES.length ? EVENT_NAMES[events[i]] : "EVENT_" + events[i];
+            sb.append(String.format(Locale.ROOT, "%10.3fms %-16s %d %d\n",
+                    (times[i] - t0) / 1e6, name, args0[i], args1[i]));
+        }
+        return sb.toString();
+    }
+}
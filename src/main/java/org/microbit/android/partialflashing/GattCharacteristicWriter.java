@@ -0,0 +1,134 @@
+package org.microbit.android.partialflashing;
+
+import android.annotation.SuppressLint;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.Build;
+import android.os.SystemClock;
+
+/**
+ * Writes characteristics through a GattOperationQueue, retrying while the stack is busy
+ *
+ * Android rejects a write when its queue is full: with ERROR_GATT_WRITE_REQUEST_BUSY from
+ * Android 13, and as a plain failure before that. A rejected write is retried with
+ * backoff until it is queued or the write timeout is reached. Other errors are returned
+ * straight away.
+ *
+ * A write without response still completes through onCharacteristicWrite. If the
+ * previous write completed with an error, the next write is not started and that error
+ * is returned instead, so a failed packet is not hidden by the ones after it.
+ *
+ * Shared by PartialFlashingBaseService and GattPartialFlashTransport. Override
+ * isCancelled() to stop retrying, for example on abort or disconnect.
+ *
+ * (c) 2017 - 2021, Micro:bit Educational Foundation and contributors
+ *
+ * SPDX-License-Identifier: MIT
+ */
+
+public class GattCharacteristicWriter {
+    // BluetoothStatusCodes.ERROR_GATT_WRITE_REQUEST_BUSY, returned when the stack queue is full
+    public static final int ERROR_GATT_WRITE_REQUEST_BUSY = 201;
+    // Returned for a write that was not started, when Android gives no status
+    public static final int BLE_ERROR_UNKNOWN = Integer.MAX_VALUE;
+
+    public static final long RETRY_DELAY = 2;          // before the first retry, doubled for each after
+    public static final long RETRY_MAX_DELAY = 50;
+
+    private final GattOperationQueue queue;
+    private final FlashTrace trace;
+    private int retries = 0;
+    // Token of the last write started, until its status is checked
+    private long lastWrite = 0;
+
+    /*
+     * @param queue the connection's operation queue
+     * @param trace records each write, or null
+     */
+    public GattCharacteristicWriter(GattOperationQueue queue, FlashTrace trace) {
+        this.queue = queue;
+        this.trace = trace;
+    }
+
+    /*
+     * Write a characteristic, once the previous operation has completed
+     * @param gatt connection to write on
+     * @param c characteristic to write
+     * @param data value to write
+     * @param writeType BluetoothGattCharacteristic.WRITE_TYPE_ value
+     * @param timeout longest time to wait and retry, in ms
+     * @return status of the last attempt. GATT_SUCCESS if the write was queued,
+     *         GattOperationQueue.STATUS_TIMEOUT if the previous operation did not complete,
+     *         or the error the previous write completed with.
+     */
+    @SuppressLint("MissingPermission")
+    public int write(BluetoothGatt gatt, BluetoothGattCharacteristic c, byte[] data, int writeType, long timeout)
+            throws InterruptedException {
+        long start = SystemClock.elapsedRealtime();
+        long delay = RETRY_DELAY;
+        while (true) {
+            // Waits for the previous operation to complete
+            long token = queue.begin(GattOperationQueue.TYPE_WRITE_CHARACTERISTIC, c.getUuid(), timeout);
+            if (token < 0) {
+                lastWrite = 0;
+                return (int) token;
+            }
+            if (lastWrite != 0) {
+                int previous = queue.getStatus(lastWrite);
+                lastWrite = 0;
+                if (previous != BluetoothGatt.GATT_SUCCESS
+                        && previous != GattOperationQueue.STATUS_CANCELLED) {
+                    queue.fail(previous);
+                    return previous;
+                }
+            }
+            int status;
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.TIRAMISU) {
+                c.setWriteType(writeType);
+                c.setValue(data);
+                status = gatt.writeCharacteristic(c) ? BluetoothGatt.GATT_SUCCESS : BLE_ERROR_UNKNOWN;
+            } else {
+                status = gatt.writeCharacteristic(c, data, writeType);
+            }
+            if (trace != null) {
+                trace.event(FlashTrace.EVENT_WRITE, status, writeType);
+            }
+
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                lastWrite = token;
+                return status;
+            }
+
+            // Not queued, so onCharacteristicWrite will not be called
+            queue.fail(status);
+
+            // Before Android 13 busy is reported as false, like other errors
+            boolean busy = status == ERROR_GATT_WRITE_REQUEST_BUSY || status == BLE_ERROR_UNKNOWN;
+            if (!busy || isCancelled()
+                    || SystemClock.elapsedRealtime() - start + delay > timeout) {
+                return status;
+            }
+            retries++;
+            Thread.sleep(delay);
+            delay = Math.min(delay * 2, RETRY_MAX_DELAY);
+        }
+    }
+
+    /*
+     * @return true to stop retrying a busy write
+     */
+    protected boolean isCancelled() {
+        return false;
+    }
+
+    /*
+     * @return busy writes retried since the last resetRetries()
+     */
+    public int getRetries() {
+        return retries;
+    }
+
+    public void resetRetries() {
+        retries = 0;
+    }
+}
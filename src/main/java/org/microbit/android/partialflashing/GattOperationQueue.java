@@ -0,0 +1,266 @@
+package org.microbit.android.partialflashing;
+
+/**
+ * Runs GATT operations one at a time and waits for each to complete
+ *
+ * Android allows one outstanding GATT operation per connection. Each operation is begun
+ * with its type and a key, such as the characteristic or descriptor UUID. Callbacks
+ * complete the operation only if the type and key match the current one, so a callback
+ * for one request never wakes a thread waiting for another. Beginning an operation
+ * first waits for the current one to finish, with a timeout.
+ *
+ * Each operation gets a token when it is begun. An operation that does not complete in
+ * time is abandoned, and begin() reports the timeout instead of starting the next one.
+ * Android calls back in request order, so the late callback of an abandoned operation
+ * arrives before that of any operation begun after it, and is absorbed rather than
+ * completing a later operation with the same type and key.
+ *
+ * The queue keeps a single operation slot that is reused, so flashing many packets
+ * allocates nothing.
+ *
+ * (c) 2017 - 2021, Micro:bit Educational Foundation and contributors
+ *
+ * SPDX-License-Identifier: MIT
+ */
+
+public class GattOperationQueue {
+    public static final int TYPE_NONE = 0;
+    public static final int TYPE_READ_DESCRIPTOR = 1;
+    public static final int TYPE_WRITE_DESCRIPTOR = 2;
+    public static final int TYPE_WRITE_CHARACTERISTIC = 3;
+    public static final int TYPE_READ_CHARACTERISTIC = 4;
+    public static final int TYPE_DISCOVER_SERVICES = 5;
+    public static final int TYPE_MTU = 6;
+
+    // Results that are not GATT status codes
+    public static final int STATUS_SUCCESS = 0;   // BluetoothGatt.GATT_SUCCESS
+    public static final int STATUS_PENDING = -1;
+    public static final int STATUS_TIMEOUT = -2;
+    public static final int STATUS_CANCELLED = -3;
+
+    // Abandoned operations whose callbacks have not arrived, oldest first
+    private static final int MAX_ABANDONED = 4;
+    // A callback this late is taken to be lost, so the operation is forgotten
+    private static final long ABANDONED_EXPIRY = 5000;
+
+    private final Object lock = new Object();
+
+    // The current operation
+    private int type = TYPE_NONE;
+    private Object key = null;
+    private int status = STATUS_PENDING;
+    private byte[] value = null;
+    private int intValue = 0;
+    private long sequence = 0;
+
+    // The operation before it
+    private long previousSequence = 0;
+    private int previousStatus = STATUS_SUCCESS;
+
+    private final int[] abandonedTypes = new int[MAX_ABANDONED];
+    private final Object[] abandonedKeys = new Object[MAX_ABANDONED];
+    private final long[] abandonedTimes = new long[MAX_ABANDONED];
+    private int abandonedCount = 0;
+
+    /*
+     * Begin an operation, after the current one completes
+     * The caller then issues the GATT request, and calls fail() if it is not started.
+     * If the current operation does not complete in time it is abandoned, and the new
+     * operation is not begun.
+     * @param type one of the TYPE_ values
+     * @param key identifies the target, matched with equals(). May be null.
+     * @param timeout longest wait for the current operation, in ms
+     * @return token of the new operation, or STATUS_TIMEOUT
+     */
+    public long begin(int type, Object key, long timeout) throws InterruptedException {
+        synchronized (lock) {
+            int previous = waitLocked(timeout);
+            if (previous == STATUS_TIMEOUT) {
+                abandonLocked();
+                return STATUS_TIMEOUT;
+            }
+            if (this.type != TYPE_NONE) {
+                previousSequence = sequence;
+                previousStatus = previous;
+            }
+            this.type = type;
+            this.key = key;
+            this.status = STATUS_PENDING;
+            this.value = null;
+            this.intValue = 0;
+            sequence++;
+            return sequence;
+        }
+    }
+
+    /*
+     * Record that the GATT request for the current operation was not started
+     * @param status the reason
+     */
+    public void fail(int status) {
+        synchronized (lock) {
+            if (this.status == STATUS_PENDING) {
+                this.status = status;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /*
+     * Wait for the current operation to complete
+     * @param timeout longest wait, in ms
+     * @return GATT status, or STATUS_TIMEOUT
+     */
+    public int await(long timeout) throws InterruptedException {
+        synchronized (lock) {
+            return waitLocked(timeout);
+        }
+    }
+
+    /*
+     * @return status of the current operation, or STATUS_PENDING
+     */
+    public int getStatus() {
+        synchronized (lock) {
+            return status;
+        }
+    }
+
+    /*
+     * @param token from begin()
+     * @return status of the operation, if it is the current or the previous one.
+     *         STATUS_CANCELLED for an older operation, whose status is not kept.
+     */
+    public int getStatus(long token) {
+        synchronized (lock) {
+            if (token == sequence && type != TYPE_NONE) {
+                return status;
+            }
+            if (token == previousSequence) {
+                return previousStatus;
+            }
+            return STATUS_CANCELLED;
+        }
+    }
+
+    /*
+     * @return bytes returned by the last completed operation, or null
+     */
+    public byte[] getValue() {
+        synchronized (lock) {
+            return value;
+        }
+    }
+
+    /*
+     * @return int returned by the last completed operation, such as the MTU
+     */
+    public int getIntValue() {
+        synchronized (lock) {
+            return intValue;
+        }
+    }
+
+    /*
+     * Complete the current operation, if it matches
+     * Called from the GATT callbacks. A callback that matches an abandoned operation
+     * is taken to be for it, as callbacks arrive in request order.
+     * @return true if the current operation was completed
+     */
+    public boolean complete(int type, Object key, int status, byte[] value, int intValue) {
+        synchronized (lock) {
+            if (absorbLocked(type, key)) {
+                return false;
+            }
+            if (this.status != STATUS_PENDING || !matches(this.type, this.key, type, key)) {
+                return false;
+            }
+            this.status = status;
+            this.value = value;
+            this.intValue = intValue;
+            lock.notifyAll();
+            return true;
+        }
+    }
+
+    public boolean complete(int type, Object key, int status) {
+        return complete(type, key, status, null, 0);
+    }
+
+    /*
+     * Complete the current operation without a callback, on disconnect or abort
+     * No callbacks are expected for abandoned operations after this.
+     */
+    public void cancel() {
+        synchronized (lock) {
+            dropAbandonedLocked(abandonedCount);
+        }
+        fail(STATUS_CANCELLED);
+    }
+
+    // The current operation timed out. Keep it, so its late callback is recognised.
+    private void abandonLocked() {
+        if (abandonedCount == MAX_ABANDONED) {
+            dropAbandonedLocked(1);
+        }
+        abandonedTypes[abandonedCount] = type;
+        abandonedKeys[abandonedCount] = key;
+        abandonedTimes[abandonedCount] = System.nanoTime();
+        abandonedCount++;
+
+        previousSequence = sequence;
+        previousStatus = STATUS_TIMEOUT;
+        status = STATUS_TIMEOUT;
+        type = TYPE_NONE;
+        key = null;
+        lock.notifyAll();
+    }
+
+    // @return true if the callback was for an abandoned operation
+    private boolean absorbLocked(int type, Object key) {
+        long now = System.nanoTime();
+        while (abandonedCount > 0 && now - abandonedTimes[0] > ABANDONED_EXPIRY * 1000000L) {
+            dropAbandonedLocked(1);
+        }
+        for (int i = 0; i < abandonedCount; i++) {
+            if (matches(abandonedTypes[i], abandonedKeys[i], type, key)) {
+                // Callbacks for any older ones are not coming
+                dropAbandonedLocked(i + 1);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void dropAbandonedLocked(int n) {
+        for (int i = n; i < abandonedCount; i++) {
+            abandonedTypes[i - n] = abandonedTypes[i];
+            abandonedKeys[i - n] = abandonedKeys[i];
+            abandonedTimes[i - n] = abandonedTimes[i];
+        }
+        for (int i = abandonedCount - n; i < abandonedCount; i++) {
+            abandonedKeys[i] = null;
+        }
+        abandonedCount -= n;
+    }
+
+    private static boolean matches(int type, Object key, int callbackType, Object callbackKey) {
+        return type == callbackType && (key == null || key.equals(callbackKey));
+    }
+
+    private int waitLocked(long timeout) throws InterruptedException {
+        if (type == TYPE_NONE) {
+            return STATUS_SUCCESS;
+        }
+        long seq = sequence;
+        long deadline = System.nanoTime() + timeout * 1000000L;
+        while (status == STATUS_PENDING && seq == sequence) {
+            long remaining = (deadline - System.nanoTime()) / 1000000L;
+            if (remaining <= 0) {
+                return STATUS_TIMEOUT;
+            }
+            lock.wait(remaining);
+        }
+        return seq == sequence ? status : STATUS_CANCELLED;
+    }
+}
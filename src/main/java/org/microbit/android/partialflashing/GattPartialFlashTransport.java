@@ -0,0 +1,318 @@
+package org.microbit.android.partialflashing;
+
+import android.annotation.SuppressLint;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.UUID;
+
+/**
+ * A BLE link to one micro:bit, with its own GATT connection and callback
+ *
+ * PartialFlashingBaseService keeps one connection in its fields, so it flashes one
+ * micro:bit at a time. Each instance of this transport holds everything for its own
+ * connection, so PartialFlashEngine can flash several micro:bits at once.
+ *
+ * Only the partial flashing service is used. The micro:bit should already be bonded if
+ * it needs to be, and no Service Changed handling or DFU fallback is done.
+ *
+ * (c) 2017 - 2021, Micro:bit Educational Foundation and contributors
+ *
+ * SPDX-License-Identifier: MIT
+ */
+
+public class GattPartialFlashTransport implements PartialFlashTransport {
+    private final static String TAG = GattPartialFlashTransport.class.getSimpleName();
+
+    private static final UUID CLIENT_CHARACTERISTIC_CONFIG = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+
+    private static final long CONNECT_TIMEOUT = 20000;
+    private static final long OPERATION_TIMEOUT = 1000;
+    private static final long DISCOVER_TIMEOUT = 10000;
+    private static final long DISCONNECT_TIMEOUT = 2000;
+    private static final long WRITE_TIMEOUT = 1000;
+
+    private final static int BLE_ERROR_UNKNOWN = GattCharacteristicWriter.BLE_ERROR_UNKNOWN;
+    private static final int REQUESTED_MTU = PartialFlashPlan.MAX_PACKET_SIZE + 3;
+
+    private final Context context;
+    private final BluetoothDevice device;
+    private final GattOperationQueue gattQueue = new GattOperationQueue();
+    // Retries busy writes while connected
+    private final GattCharacteristicWriter gattWriter = new GattCharacteristicWriter( gattQueue, null) {
+        @Override
+        protected boolean isCancelled() {
+            return !connected;
+        }
+    };
+    private final LinkController link = new LinkController();
+    private final Object lock = new Object();
+
+    private volatile BluetoothGatt gatt = null;
+    private volatile BluetoothGattCharacteristic characteristic = null;
+    private volatile boolean connected = false;
+    private volatile boolean connectFailed = false;    // disconnected or error while connecting
+    private volatile int mtu = DEFAULT_MTU;
+    private volatile Listener listener = null;
+    private boolean highPriority = true;
+
+    public GattPartialFlashTransport( Context context, BluetoothDevice device) {
+        this.context = context.getApplicationContext();
+        this.device = device;
+    }
+
+    public BluetoothDevice getDevice() {
+        return device;
+    }
+
+    public LinkController getLinkController() {
+        return link;
+    }
+
+    /*
+     * @param enabled ask for high connection priority and the 2M PHY once connected
+     */
+    public void setHighPriority( boolean enabled) {
+        highPriority = enabled;
+    }
+
+    @Override
+    public void setListener( Listener listener) {
+        this.listener = listener;
+    }
+
+    @SuppressLint("MissingPermission")
+    @Override
+    public boolean connect() throws InterruptedException {
+        disconnect();
+        mtu = DEFAULT_MTU;
+        characteristic = null;
+        connectFailed = false;
+        link.reset();
+
+        BluetoothGatt g;
+        if ( Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            g = device.connectGatt( context, false, callback, BluetoothDevice.TRANSPORT_LE,
+                    BluetoothDevice.PHY_LE_1M_MASK | BluetoothDevice.PHY_LE_2M_MASK);
+        } else if ( Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            g = device.connectGatt( context, false, callback, BluetoothDevice.TRANSPORT_LE);
+        } else {
+            g = device.connectGatt( context, false, callback);
+        }
+        if ( g == null) {
+            return false;
+        }
+        gatt = g;
+
+        long start = SystemClock.elapsedRealtime();
+        synchronized (lock) {
+            long remaining = CONNECT_TIMEOUT;
+            while ( !connected && !connectFailed && remaining > 0) {
+                lock.wait( remaining);
+                remaining = CONNECT_TIMEOUT - ( SystemClock.elapsedRealtime() - start);
+            }
+        }
+        if ( !connected) {
+            Log.w(TAG, device.getAddress() + ( connectFailed ? " connect failed" : " connect timed out"));
+            disconnect();
+            return false;
+        }
+
+        if ( gattQueue.begin( GattOperationQueue.TYPE_DISCOVER_SERVICES, null, OPERATION_TIMEOUT) < 0) {
+            Log.w(TAG, device.getAddress() + " GATT busy");
+            disconnect();
+            return false;
+        }
+        if ( !g.discoverServices()) {
+            gattQueue.fail( BLE_ERROR_UNKNOWN);
+        }
+        if ( gattQueue.await( DISCOVER_TIMEOUT) != BluetoothGatt.GATT_SUCCESS) {
+            Log.w(TAG, device.getAddress() + " service discovery failed");
+            disconnect();
+            return false;
+        }
+
+        BluetoothGattService service = g.getService( PartialFlashingBaseService.PARTIAL_FLASHING_SERVICE);
+        if ( service != null) {
+            characteristic = service.getCharacteristic( PartialFlashingBaseService.PARTIAL_FLASH_CHARACTERISTIC);
+        }
+        if ( characteristic == null) {
+            Log.w(TAG, device.getAddress() + " has no partial flashing service");
+            disconnect();
+            return false;
+        }
+
+        // Larger packets if the firmware supports them
+        if ( gattQueue.begin( GattOperationQueue.TYPE_MTU, null, OPERATION_TIMEOUT) >= 0) {
+            if ( !g.requestMtu( REQUESTED_MTU)) {
+                gattQueue.fail( BLE_ERROR_UNKNOWN);
+            }
+            if ( gattQueue.await( OPERATION_TIMEOUT) == BluetoothGatt.GATT_SUCCESS) {
+                mtu = gattQueue.getIntValue();
+            }
+        }
+
+        if ( highPriority) {
+            link.raise( g);
+        }
+        return true;
+    }
+
+    @SuppressLint("MissingPermission")
+    @Override
+    public boolean enableNotifications() throws InterruptedException {
+        BluetoothGatt g = gatt;
+        BluetoothGattCharacteristic c = characteristic;
+        if ( g == null || c == null) {
+            return false;
+        }
+        BluetoothGattDescriptor ccc = c.getDescriptor( CLIENT_CHARACTERISTIC_CONFIG);
+        if ( ccc == null) {
+            return false;
+        }
+        g.setCharacteristicNotification( c, true);
+
+        if ( gattQueue.begin( GattOperationQueue.TYPE_WRITE_DESCRIPTOR, ccc.getUuid(), OPERATION_TIMEOUT) < 0) {
+            return false;
+        }
+        boolean started;
+        if ( Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+            started = g.writeDescriptor( ccc, BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE) == BluetoothGatt.GATT_SUCCESS;
+        } else {
+            ccc.setValue( BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+            started = g.writeDescriptor( ccc);
+        }
+        if ( !started) {
+            gattQueue.fail( BLE_ERROR_UNKNOWN);
+        }
+        return gattQueue.await( OPERATION_TIMEOUT) == BluetoothGatt.GATT_SUCCESS;
+    }
+
+    /*
+     * Write without response, once the previous write has completed
+     * If the stack is busy the write is retried with backoff.
+     */
+    @Override
+    public int write( byte[] data) throws InterruptedException {
+        BluetoothGatt g = gatt;
+        BluetoothGattCharacteristic c = characteristic;
+        if ( g == null || c == null || !connected) {
+            return BLE_ERROR_UNKNOWN;
+        }
+        return gattWriter.write( g, c, data, BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE, WRITE_TIMEOUT);
+    }
+
+    @Override
+    public int awaitWrite( long timeout) throws InterruptedException {
+        return gattQueue.await( timeout);
+    }
+
+    @Override
+    public int getMtu() {
+        return mtu;
+    }
+
+    @SuppressLint("MissingPermission")
+    @Override
+    public void disconnect() {
+        BluetoothGatt g = gatt;
+        if ( g == null) {
+            return;
+        }
+        link.restore( g);
+        if ( connected) {
+            g.disconnect();
+            long start = SystemClock.elapsedRealtime();
+            synchronized (lock) {
+                try {
+                    long remaining = DISCONNECT_TIMEOUT;
+                    while ( connected && remaining > 0) {
+                        lock.wait( remaining);
+                        remaining = DISCONNECT_TIMEOUT - ( SystemClock.elapsedRealtime() - start);
+                    }
+                } catch ( InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        g.close();
+        gatt = null;
+        connected = false;
+        gattQueue.cancel();
+    }
+
+    private final BluetoothGattCallback callback = new BluetoothGattCallback() {
+        @Override
+        public void onConnectionStateChange( BluetoothGatt g, int status, int newState) {
+            boolean wasConnected = connected;
+            connected = newState == BluetoothProfile.STATE_CONNECTED && status == BluetoothGatt.GATT_SUCCESS;
+            if ( !connected && newState != BluetoothProfile.STATE_CONNECTING) {
+                // Usually status 133 when the micro:bit could not be reached
+                connectFailed = true;
+            }
+            synchronized (lock) {
+                lock.notifyAll();
+            }
+            if ( !connected) {
+                // Before the pending write is cancelled, so the lost link is seen as the cause
+                Listener l = listener;
+                if ( wasConnected && l != null) {
+                    l.onDisconnected();
+                }
+                gattQueue.cancel();
+            }
+        }
+
+        @Override
+        public void onServicesDiscovered( BluetoothGatt g, int status) {
+            gattQueue.complete( GattOperationQueue.TYPE_DISCOVER_SERVICES, null, status);
+        }
+
+        @Override
+        public void onMtuChanged( BluetoothGatt g, int mtu, int status) {
+            gattQueue.complete( GattOperationQueue.TYPE_MTU, null, status, null, mtu);
+        }
+
+        @Override
+        public void onDescriptorWrite( BluetoothGatt g, BluetoothGattDescriptor descriptor, int status) {
+            gattQueue.complete( GattOperationQueue.TYPE_WRITE_DESCRIPTOR, descriptor.getUuid(), status);
+        }
+
+        @Override
+        public void onCharacteristicWrite( BluetoothGatt g, BluetoothGattCharacteristic c, int status) {
+            gattQueue.complete( GattOperationQueue.TYPE_WRITE_CHARACTERISTIC, c.getUuid(), status);
+        }
+
+        @Override
+        public void onCharacteristicChanged( BluetoothGatt g, BluetoothGattCharacteristic c) {
+            Listener l = listener;
+            if ( l != null && PartialFlashingBaseService.PARTIAL_FLASH_CHARACTERISTIC.equals( c.getUuid())) {
+                l.onNotification( c.getValue());
+            }
+        }
+
+        @Override
+        public void onPhyUpdate( BluetoothGatt g, int txPhy, int rxPhy, int status) {
+            link.onPhyUpdate( txPhy, rxPhy, status);
+        }
+
+        @Override
+        public void onPhyRead( BluetoothGatt g, int txPhy, int rxPhy, int status) {
+            link.onPhyUpdate( txPhy, rxPhy, status);
+        }
+
+        // Hidden in the SDK, but called on Android 8+
+        public void onConnectionUpdated( BluetoothGatt g, int interval, int latency, int timeout, int status) {
+            link.onConnectionUpdated( interval, latency, timeout, status);
+        }
+    };
+}
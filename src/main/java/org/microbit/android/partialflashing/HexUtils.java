@@ -7,9 +7,13 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
-import java.util.ListIterator;
 
 
 /**
@@ -18,6 +22,14 @@ import java.util.ListIterator;
  * A Class to manipulate micro:bit hex files
  * Focused towards stripping a file down to it's PXT section for use in Partial Flashing
  *
+ * The file is parsed once into a binary image. Each record is held in a compact index
+ * (type, absolute address and offset of its data) and the data bytes of all data records are held,
+ * in file order, in a single byte array. Runs of data records with contiguous addresses
+ * form address-keyed segments, used to look up addresses without walking the file.
+ *
+ * A universal hex can be parsed for one board only. The other board's blocks are skipped
+ * without decoding, and the selected board's custom data records (0x0D) are held as data.
+ *
  *   (c) 2017 - 2021, Micro:bit Educational Foundation and contributors
  *
  *  SPDX-License-Identifier: MIT
@@ -26,17 +38,82 @@ import java.util.ListIterator;
 
 public class HexUtils {
     private final static String TAG = HexUtils.class.getSimpleName();
-        
+
     private final static int INIT = 0;
     private final static int INVALID_FILE = 1;
     private final static int NO_PARTIAL_FLASH = 2;
     public int status = INIT;
 
-    FileInputStream fis = null;
-    BufferedReader reader = null;
-    List<String> hexLines = new ArrayList<String>();
+    // Board to parse a universal hex for
+    public final static int BOARD_ANY = 0;
+    public final static int BOARD_V1 = 1;
+    public final static int BOARD_V2 = 2;
+
+    // Partial flashing WRITE command: command, offset (2 bytes), packet number
+    public final static int PACKET_HEADER_SIZE = 4;
+
+    private final static char[] HEX_CHARS = "0123456789ABCDEF".toCharArray();
+    private final static byte[] HEX_VALUES = new byte[256];
+    static {
+        Arrays.fill(HEX_VALUES, (byte) -1);
+        for (int i = 0; i < 10; i++) {
+            HEX_VALUES['0' + i] = (byte) i;
+        }
+        for (int i = 0; i < 6; i++) {
+            HEX_VALUES['A' + i] = (byte) (10 + i);
+            HEX_VALUES['a' + i] = (byte) (10 + i);
+        }
+    }
+
+    // Record index - one entry per record, in file order
+    private int recordCount = 0;
+    private byte[] recordTypes = new byte[0];
+    private int[] recordAddresses = new int[0];  // 16 bit address field of the record
+    private long[] recordBases = new long[0];    // extended linear or segment base for the record
+    private int[] recordOffsets = new int[0];    // offset of the record data in data or meta
+    private byte[] recordLengths = new byte[0];  // number of data bytes in the record
+
+    // Data bytes of data records (0x00 and 0x0D), in file order
+    private byte[] data = new byte[0];
+    private int dataLength = 0;
+
+    // Data bytes of all other records, in file order
+    private byte[] meta = new byte[0];
+    private int metaLength = 0;
+
+    // Base address from the last extended address record, while parsing
+    private long parseBase = 0;
+    private long indexedBase = -1;
+
+    // Universal hex - only the blocks for one board are parsed
+    private final int board;
+    private boolean universal = false;
+    private boolean blockWanted = true;
+
+    // Indexes of the data records, in file order
+    private int dataRecordCount = 0;
+    private int[] dataRecords = new int[0];
+
+    // Segments - runs of data records with contiguous addresses
+    private int segmentCount = 0;
+    private long[] segmentAddresses = new long[0];
+    private int[] segmentFirstDataRecords = new int[0];  // index into dataRecords
+    private int[] segmentDataRecordCounts = new int[0];
+    private int[] segmentLengths = new int[0];   // bytes
+    private int[] segmentsByAddress = new int[0];
+    private int maxSegmentLength = 0;
 
     public HexUtils(String filePath){
+        this(filePath, BOARD_ANY);
+    }
+
+    /*
+        @param filePath - A string locating the hex file in use
+        @param board - BOARD_V1 or BOARD_V2 to parse only that board's part of a universal hex,
+                       BOARD_ANY to parse every record
+     */
+    public HexUtils(String filePath, int board){
+        this.board = board;
         // Hex Utils initialization
         // Open File
         try {
@@ -45,6 +122,7 @@ public class HexUtils {
           }
         } catch(Exception e) {
           Log.e(TAG, "Error opening file: " + e);
+          status = INVALID_FILE;
         }
     }
 
@@ -56,6 +134,7 @@ public class HexUtils {
      */
     public Boolean openHexFile(String filePath) throws IOException {
         // Open connection to hex file
+        FileInputStream fis;
         try {
             fis = new FileInputStream(filePath);
         } catch (FileNotFoundException e) {
@@ -63,39 +142,355 @@ public class HexUtils {
             return false;
         }
 
-        // Create reader for hex file
-        reader = new BufferedReader(new InputStreamReader(fis));
-        String line;
-        while((line = reader.readLine()) != null) {
-            hexLines.add(line);
+        // Intel HEX is ASCII - map the file and decode records straight from the bytes
+        FileChannel channel = fis.getChannel();
+        try {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                Log.e(TAG, "File too large: " + size);
+                return false;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            int limit = (int) size;
+
+            // Sized for the records kept, so a filtered universal hex only holds one board's data
+            long counts = countRecords(buffer, limit);
+            allocate((int) (counts >>> 32) + 16, (int) counts + 16);
+
+            int pos = 0;
+            while (pos < limit) {
+                if (buffer.get(pos) != ':') {
+                    // Line endings, blank lines
+                    pos++;
+                    continue;
+                }
+                pos = parseRecord(buffer, pos, limit);
+                if (pos < 0) {
+                    return false;
+                }
+            }
+        } finally {
+            channel.close();
+            fis.close();
         }
-        reader.close();
+        buildSegments();
+        compact();
         return true;
     }
 
-    /* 
+    /*
+        Release the space allocated for records that were not in the file,
+        e.g. the other board's half of a universal hex
+     */
+    private void compact() {
+        if (recordTypes.length - recordCount > recordCount / 4) {
+            recordTypes = Arrays.copyOf(recordTypes, recordCount);
+            recordAddresses = Arrays.copyOf(recordAddresses, recordCount);
+            recordBases = Arrays.copyOf(recordBases, recordCount);
+            recordOffsets = Arrays.copyOf(recordOffsets, recordCount);
+            recordLengths = Arrays.copyOf(recordLengths, recordCount);
+        }
+        if (data.length - dataLength > dataLength / 4) {
+            data = Arrays.copyOf(data, dataLength);
+        }
+    }
+
+    /*
+        Count the records the parse will keep, and their data bytes
+        Blocks for the other board of a universal hex are skipped when filtering. The
+        counts are an upper bound, and malformed records are left for the parse to report.
+        @param buffer - file contents
+        @param limit - end of the file contents
+        @return records in the high 32 bits, data bytes in the low 32 bits
+     */
+    private long countRecords(ByteBuffer buffer, int limit) {
+        long records = 0;
+        long bytes = 0;
+        boolean wanted = true;
+        int pos = 0;
+        while (pos + 11 <= limit) {
+            if (buffer.get(pos) != ':') {
+                pos++;
+                continue;
+            }
+            int dataBytes = hexByte(buffer, pos + 1);
+            int type = hexByte(buffer, pos + 7);
+            if (dataBytes < 0 || type < 0 || pos + 11 + dataBytes * 2 > limit) {
+                // Malformed or truncated
+                break;
+            }
+            if (board != BOARD_ANY && type == 0x0A) {
+                int id = dataBytes >= 2 ? (hexByte(buffer, pos + 9) << 8) | hexByte(buffer, pos + 11) : -1;
+                wanted = boardIdMatches(id);
+            }
+            if (wanted) {
+                records++;
+                if (isDataType(type)) {
+                    bytes += dataBytes;
+                }
+            }
+            pos += 11 + dataBytes * 2;
+        }
+        return records << 32 | bytes;
+    }
+
+    private void allocate(int records, int bytes) {
+        recordTypes = new byte[records];
+        recordAddresses = new int[records];
+        recordBases = new long[records];
+        recordOffsets = new int[records];
+        recordLengths = new byte[records];
+        data = new byte[bytes];
+        meta = new byte[64];
+    }
+
+    /*
+        Parse one record into the index
+        @param buffer - file contents
+        @param start - position of the ':' that starts the record
+        @param limit - end of the file contents
+        @return position after the record, or -1 if the record is malformed
+     */
+    private int parseRecord(ByteBuffer buffer, int start, int limit) {
+        if (limit - start < 11) {
+            Log.e(TAG, "Record too short at " + start);
+            return -1;
+        }
+        int dataBytes = hexByte(buffer, start + 1);
+        int addrHi = hexByte(buffer, start + 3);
+        int addrLo = hexByte(buffer, start + 5);
+        int type = hexByte(buffer, start + 7);
+        if (dataBytes < 0 || addrHi < 0 || addrLo < 0 || type < 0 || limit - start < 11 + dataBytes * 2) {
+            Log.e(TAG, "Invalid record at " + start);
+            return -1;
+        }
+        int next = start + 11 + dataBytes * 2;
+
+        if (board != BOARD_ANY) {
+            switch (type) {
+                case 0x0A: {    // Block Start - board ID of the block
+                    universal = true;
+                    int id = dataBytes >= 2 ? (hexByte(buffer, start + 9) << 8) | hexByte(buffer, start + 11) : -1;
+                    blockWanted = boardIdMatches(id);
+                    return next;
+                }
+                case 0x0B:      // Block End
+                case 0x0C:      // Padded Data
+                case 0x0E:      // Other Data
+                    return next;
+            }
+            if (universal) {
+                switch (type) {
+                    case 2:
+                    case 4:
+                        // Applied to the next data record for this board
+                        if (dataBytes == 2) {
+                            int value = (hexByte(buffer, start + 9) << 8) | hexByte(buffer, start + 11);
+                            parseBase = type == 4 ? (long) value * 0x10000 : (long) value * 0x10;
+                        }
+                        return next;
+                    case 0:
+                    case 0x0D:
+                        if (!blockWanted) {
+                            // Data for the other board is never decoded
+                            return next;
+                        }
+                        if (parseBase != indexedBase) {
+                            int offset = addRecord(4, 0, 2);
+                            meta[offset] = (byte) (parseBase >>> 24);
+                            meta[offset + 1] = (byte) (parseBase >>> 16);
+                            indexedBase = parseBase;
+                        }
+                        // The selected board's data is plain data
+                        type = 0;
+                        break;
+                }
+            }
+        }
+
+        int offset = addRecord(type, (addrHi << 8) | addrLo, dataBytes);
+        byte[] target = isDataType(type) ? data : meta;
+        for (int i = 0; i < dataBytes; i++) {
+            int b = hexByte(buffer, start + 9 + i * 2);
+            if (b < 0) {
+                Log.e(TAG, "Invalid record data at " + start);
+                return -1;
+            }
+            target[offset + i] = (byte) b;
+        }
+
+        // Resolve the base address once, here, rather than on every lookup
+        if ((type == 2 || type == 4) && dataBytes == 2) {
+            int value = ((target[offset] & 0xFF) << 8) | (target[offset + 1] & 0xFF);
+            parseBase = type == 4 ? (long) value * 0x10000 : (long) value * 0x10;
+            recordBases[recordCount - 1] = parseBase;
+            indexedBase = parseBase;
+        }
+        return next;
+    }
+
+    /*
+        Add a record to the index
+        @param type - record type
+        @param address - 16 bit address field of the record
+        @param dataBytes - number of data bytes
+        @return offset reserved for the record data in data or meta
+     */
+    private int addRecord(int type, int address, int dataBytes) {
+        if (recordCount == recordTypes.length) {
+            int capacity = recordCount * 2;
+            recordTypes = Arrays.copyOf(recordTypes, capacity);
+            recordAddresses = Arrays.copyOf(recordAddresses, capacity);
+            recordBases = Arrays.copyOf(recordBases, capacity);
+            recordOffsets = Arrays.copyOf(recordOffsets, capacity);
+            recordLengths = Arrays.copyOf(recordLengths, capacity);
+        }
+
+        int offset;
+        if (isDataType(type)) {
+            if (dataLength + dataBytes > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, dataLength + dataBytes));
+            }
+            offset = dataLength;
+            dataLength += dataBytes;
+        } else {
+            if (metaLength + dataBytes > meta.length) {
+                meta = Arrays.copyOf(meta, Math.max(meta.length * 2, metaLength + dataBytes));
+            }
+            offset = metaLength;
+            metaLength += dataBytes;
+        }
+
+        recordTypes[recordCount] = (byte) type;
+        recordAddresses[recordCount] = address;
+        recordBases[recordCount] = parseBase;
+        recordOffsets[recordCount] = offset;
+        recordLengths[recordCount] = (byte) dataBytes;
+        recordCount++;
+        return offset;
+    }
+
+    /*
+        Check a universal hex board ID against the board being parsed for
+        @param id - board ID from a Block Start record
+        @return true if the block is for the board
+     */
+    private boolean boardIdMatches(int id) {
+        switch (id) {
+            case 0x9900:
+            case 0x9901:
+                return board == BOARD_V1;
+            case 0x9903:
+            case 0x9904:
+            case 0x9905:
+            case 0x9906:
+                return board == BOARD_V2;
+            default:
+                return false;
+        }
+    }
+
+    /*
+        Group the data records into runs with contiguous addresses
+        and sort the runs by address for searchForAddress
+     */
+    private void buildSegments() {
+        long segmentEnd = -1;
+        int capacity = 16;
+        segmentAddresses = new long[capacity];
+        segmentFirstDataRecords = new int[capacity];
+        segmentDataRecordCounts = new int[capacity];
+        segmentLengths = new int[capacity];
+        segmentCount = 0;
+        dataRecords = new int[recordCount];
+        dataRecordCount = 0;
+        for (int i = 0; i < recordCount; i++) {
+            if (isDataType(getRecordTypeFromIndex(i))) {
+                int n = getRecordLength(i);
+                long address = getRecordAbsoluteAddressFromIndex(i);
+                if (segmentCount > 0 && address == segmentEnd) {
+                    segmentLengths[segmentCount - 1] += n;
+                    segmentDataRecordCounts[segmentCount - 1]++;
+                } else {
+                    if (segmentCount == capacity) {
+                        capacity *= 2;
+                        segmentAddresses = Arrays.copyOf(segmentAddresses, capacity);
+                        segmentFirstDataRecords = Arrays.copyOf(segmentFirstDataRecords, capacity);
+                        segmentDataRecordCounts = Arrays.copyOf(segmentDataRecordCounts, capacity);
+                        segmentLengths = Arrays.copyOf(segmentLengths, capacity);
+                    }
+                    segmentAddresses[segmentCount] = address;
+                    segmentFirstDataRecords[segmentCount] = dataRecordCount;
+                    segmentDataRecordCounts[segmentCount] = 1;
+                    segmentLengths[segmentCount] = n;
+                    segmentCount++;
+                }
+                dataRecords[dataRecordCount++] = i;
+                segmentEnd = address + n;
+            }
+        }
+
+        // Index of segments sorted by address, then by position in the file
+        Integer[] order = new Integer[segmentCount];
+        maxSegmentLength = 0;
+        for (int i = 0; i < segmentCount; i++) {
+            order[i] = i;
+            maxSegmentLength = Math.max(maxSegmentLength, segmentLengths[i]);
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                int c = Long.compare(segmentAddresses[a], segmentAddresses[b]);
+                return c != 0 ? c : Integer.compare(a, b);
+            }
+        });
+        segmentsByAddress = new int[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segmentsByAddress[i] = order[i];
+        }
+    }
+
+    /*
+     * @return true if the file is a universal hex and only one board's blocks were parsed
+     */
+    public boolean isUniversalFiltered() {
+        return universal;
+    }
+
+    /*
+     * @return approximate memory used by the parsed file, in bytes
+     */
+    public long getMemorySize() {
+        return (long) recordTypes.length * (1 + 4 + 8 + 4 + 1)
+                + data.length + meta.length
+                + (long) dataRecords.length * 4
+                + (long) segmentAddresses.length * (8 + 4 + 4 + 4)
+                + (long) segmentsByAddress.length * 4;
+    }
+
+    /*
      * A function to find the length of the hex file
      * @param none
      * @ return the size (# of lines) in the hex file
      */
     public int numOfLines() {
-            return hexLines.size();
+            return recordCount;
     }
-    
-    /* 
+
+    /*
      * A function to search for data in a hex file
      * @param the _string_ of data to search for
      * @return the index of the data. -1 if not found.
      */
     public int searchForData(String search) throws IOException {
-        // Iterate through
-        ListIterator i = hexLines.listIterator();
-        while (i.hasNext()) {
-            // Have to call nextIndex() before next()
-            int index = i.nextIndex();
-
-            // Return index if successful
-            if(i.next().toString().contains(search)){ return index; }
+        byte[] pattern = hexToBytes(search);
+        if (pattern == null) {
+            return -1;
+        }
+        for (int index = 0; index < recordCount; index++) {
+            if (indexOfData(index, pattern) >= 0) {
+                return index;
+            }
         }
 
         // Return -1 if no match
@@ -109,14 +504,9 @@ public class HexUtils {
      */
     public int searchForDataRegEx(String search) throws IOException {
         // Iterate through
-        ListIterator i = hexLines.listIterator();
-        while (i.hasNext()) {
-            // Have to call nextIndex() before next()
-            int index = i.nextIndex();
-
+        for (int index = 0; index < recordCount; index++) {
             // Return index if successful
-            String match = i.next().toString();
-            if(match.matches(search)){
+            if(getDataFromIndex(index).matches(search)){
                 return index;
             }
         }
@@ -125,63 +515,113 @@ public class HexUtils {
         return -1;
     }
 
+    /*
+     * A function to search for several markers in a hex file in a single pass
+     * Markers that straddle records are found if the records have contiguous addresses
+     * @param scanner the markers to search for
+     * @return every marker found, in file order
+     */
+    public List<MagicScanner.Match> searchForMarkers(MagicScanner scanner) {
+        final List<MagicScanner.Match> matches = new ArrayList<MagicScanner.Match>();
+        for (int segment = 0; segment < segmentCount; segment++) {
+            final int first = segmentFirstDataRecords[segment];
+            final int last = first + segmentDataRecordCounts[segment] - 1;
+            final int start = recordOffsets[dataRecords[first]];
+            final long address = segmentAddresses[segment];
+            scanner.scan(data, start, start + segmentLengths[segment], new MagicScanner.Listener() {
+                @Override
+                public void onMarker(int marker, int position) {
+                    int index = findDataRecord(first, last, position);
+                    matches.add(new MagicScanner.Match(marker, index, position - recordOffsets[index], address + position - start));
+                }
+            });
+        }
+        return matches;
+    }
+
+    /*
+     * A function to search for bytes in the data of a record
+     * @param index of the record
+     * @param search the bytes to search for
+     * @return the offset (in bytes) of the data. -1 if not found.
+     */
+    public int indexOfData(int index, byte[] search) {
+        int len = getRecordLength(index);
+        byte[] source = recordSource(index);
+        int offset = recordOffsets[index];
+        for (int i = 0; i + search.length <= len; i++) {
+            int j = 0;
+            while (j < search.length && source[offset + i + j] == search[j]) {
+                j++;
+            }
+            if (j == search.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
     /*
      * A function to search for an address in a hex file
      * @param search the address to search for
      * @return the index of the address. -1 if not found.
      */
     public int searchForAddress( long address) throws IOException {
-        long lastBaseAddr = 0;
-        String data;
-        // Iterate through
-        ListIterator i = hexLines.listIterator();
-        while ( i.hasNext()) {
-            // Have to call nextIndex() before next()
-            int index = i.nextIndex();
-            String line = i.next().toString();
-
-            switch (getRecordType(line)) {
-                case 2: {               // Extended Segment Address
-                    data = getRecordData(line);
-                    if ( data.length() != 4) {
-                        return -1;
-                    }
-                    int hi = Integer.parseInt( data.substring(0, 1), 16);
-                    int lo = Integer.parseInt( data.substring(1), 16);
-                    lastBaseAddr = (long) hi * (long) 0x1000 + (long) lo * (long) 0x10;
-                    if ( lastBaseAddr > address) {
-                        return -1;
-                    }
-                    break;
-                }
-                case 4: {
-                    data = getRecordData(line);
-                    if ( data.length() != 4) {
-                        return -1;
-                    }
-                    lastBaseAddr = Integer.parseInt( data, 16);
-                    lastBaseAddr *= (long) 0x10000;
-                    if ( lastBaseAddr > address) {
-                        return -1;
-                    }
-                    break;
-                }
-                case 0:
-                case 0x0D: {
-                    if ( address - lastBaseAddr < 0x10000) {
-                        long a = lastBaseAddr + getRecordAddress(line);
-                        int  n = getRecordDataLength( line) / 2; // bytes
-                        if ( a <= address && a + n > address) {
-                            return index;
-                        }
-                    }
-                    break;
-                }
+        // Last segment starting at or before address
+        int lo = 0;
+        int hi = segmentCount - 1;
+        int last = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (segmentAddresses[segmentsByAddress[mid]] <= address) {
+                last = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
             }
         }
 
-        // Return -1 if no match
-        return -1;
+        // Segments may overlap (e.g. universal hex) - use the first in the file
+        int found = -1;
+        for (int i = last; i >= 0; i--) {
+            int segment = segmentsByAddress[i];
+            long start = segmentAddresses[segment];
+            if (start + maxSegmentLength <= address) {
+                break;
+            }
+            if (start + segmentLengths[segment] > address && (found < 0 || segment < found)) {
+                found = segment;
+            }
+        }
+        if (found < 0) {
+            // Return -1 if no match
+            return -1;
+        }
+
+        // Find the record in the segment
+        // Data offsets within a segment follow the addresses
+        int first = segmentFirstDataRecords[found];
+        long offset = address - segmentAddresses[found];
+        return findDataRecord(first, first + segmentDataRecordCounts[found] - 1, (int) (recordOffsets[dataRecords[first]] + offset));
+    }
+
+    /*
+     * Find the data record that holds a byte of data
+     * @param lo first entry of dataRecords to search
+     * @param hi last entry of dataRecords to search
+     * @param dataOffset offset of the byte in data
+     * @return the record index
+     */
+    private int findDataRecord(int lo, int hi, int dataOffset) {
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (recordOffsets[dataRecords[mid]] <= dataOffset) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return dataRecords[lo];
     }
 
     /*
@@ -190,7 +630,31 @@ public class HexUtils {
      * @return data as string
      */
     public String getDataFromIndex(int index) throws IOException {
-            return getRecordData(hexLines.get(index)); 
+            return bytesToHex(recordSource(index), recordOffsets[index], getRecordLength(index));
+    }
+
+    /*
+     * Copies data from the data records, starting at an index
+     * Records that are not data records are skipped
+     * @param index of the first record
+     * @param offset into the data of the first record, in bytes
+     * @param buffer to copy into
+     * @param bufferOffset first byte of buffer to use
+     * @param length number of bytes to copy
+     * @return number of bytes copied. Less than length if the end of the file is reached.
+     */
+    public int getData(int index, int offset, byte[] buffer, int bufferOffset, int length) {
+        while (index < recordCount && !isDataType(getRecordTypeFromIndex(index))) {
+            index++;
+            offset = 0;
+        }
+        if (index >= recordCount) {
+            return 0;
+        }
+        int start = recordOffsets[index] + offset;
+        int n = Math.max(0, Math.min(length, dataLength - start));
+        System.arraycopy(data, start, buffer, bufferOffset, n);
+        return n;
     }
 
     /*
@@ -198,8 +662,8 @@ public class HexUtils {
      * @param index
      * @return type as int
      */
-    public int getRecordTypeFromIndex(int index) throws IOException {
-            return getRecordType(hexLines.get(index));
+    public int getRecordTypeFromIndex(int index) {
+            return recordTypes[index] & 0xFF;
     }
 
     /*
@@ -208,8 +672,18 @@ public class HexUtils {
      * @param index
      * @return address as int
      */
-    public int getRecordAddressFromIndex(int index) throws IOException {
-            return getRecordAddress(hexLines.get(index));
+    public int getRecordAddressFromIndex(int index) {
+            return recordAddresses[index];
+    }
+
+    /*
+     * Returns the absolute address of a record from an index
+     * Includes the extended linear or segment address
+     * @param index
+     * @return address
+     */
+    public long getRecordAbsoluteAddressFromIndex(int index) {
+            return recordBases[index] + recordAddresses[index];
     }
 
     /*
@@ -218,77 +692,89 @@ public class HexUtils {
     @return Data length as a decimal / # of chars
  */
     public int getRecordDataLengthFromIndex(int index){
-        return getRecordDataLength(hexLines.get(index));
+        return getRecordLength(index) * 2;
     }
 
     /*
      * Returns segment address from an index
+     * The base of each record is resolved when the file is parsed
      * @param index
-     * @return address as int
+     * @return address as int - the upper 16 bits of the record address
      */
     public int getSegmentAddress(int index) throws IOException {
-            // Look backwards to find current segment address
-            int segmentAddress = -1;
-            int cur = index;
-            while(segmentAddress == -1) {
-                if(getRecordTypeFromIndex(cur) == 4)
-                    break;
-                cur--;
-            }
-
-            // Return segment address
-            return Integer.parseInt(getRecordData(hexLines.get(cur)), 16);
+            return (int) (recordBases[index] >>> 16);
     }
 
     /*
-        Used to get the data address from a record
-        @param Record as a String
-        @return Data address as a decimal
+        Used to get the number of data bytes in a record
+        @param index
+        @return Data length in bytes
      */
-    private int getRecordAddress(String record){
-        String hexAddress = record.substring(3,7);
-        return Integer.parseInt(hexAddress, 16);
+    private int getRecordLength(int index) {
+        return recordLengths[index] & 0xFF;
     }
 
-    /*
-        Used to get the data length from a record
-        @param Record as a String
-        @return Data length as a decimal / # of chars
-     */
-    private int getRecordDataLength(String record){
-        String hexLength = record.substring(1,3);
-        int len = 2 * Integer.parseInt(hexLength, 16); // Num Of Bytes. Each Byte is represented by 2 chars hence 2*
-        return len;
+    private byte[] recordSource(int index) {
+        return isDataType(getRecordTypeFromIndex(index)) ? data : meta;
+    }
+
+    private static boolean isDataType(int type) {
+        return type == 0 || type == 0x0D;
+    }
+
+    private static int hexByte(ByteBuffer buffer, int idx) {
+        int hi = HEX_VALUES[buffer.get(idx) & 0xFF];
+        int lo = HEX_VALUES[buffer.get(idx + 1) & 0xFF];
+        if (hi < 0 || lo < 0) {
+            return -1;
+        }
+        return (hi << 4) | lo;
+    }
+
+    private static int hexByte(CharSequence s, int idx) {
+        int hi = Character.digit(s.charAt(idx), 16);
+        int lo = Character.digit(s.charAt(idx + 1), 16);
+        if (hi < 0 || lo < 0) {
+            return -1;
+        }
+        return (hi << 4) | lo;
     }
 
     /*
-    Used to get the record type from a record
-    @param Record as a String
-    @return Record type as a decimal
-    */
-    private int getRecordType(String record){
-        try {
-            String hexType = record.substring(7, 9);
-            return Integer.parseInt(hexType, 16);
-        } catch (Exception e){
-            Log.e(TAG, "getRecordType " + e.toString());
-            return 0;
+    Convert a string of hex digits to bytes
+    @param hex string to convert
+    @return bytes, or null if the string is not valid hex
+     */
+    public static byte[] hexToBytes(String hex) {
+        if (hex.length() % 2 != 0) {
+            return null;
+        }
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int b = hexByte(hex, i * 2);
+            if (b < 0) {
+                return null;
+            }
+            bytes[i] = (byte) b;
         }
+        return bytes;
     }
 
     /*
-    Used to get the data from a record
-    @param Record as a String
-    @return Data
-    */
-    private String getRecordData(String record){
-        try {
-            int len = getRecordDataLength(record);
-            return record.substring(9, 9 + len);
-        } catch (Exception e) {
-            Log.e(TAG, "Get record data " + e.toString());
-            return "";
+    Convert bytes to a string of hex digits
+    @param bytes to convert
+    @param offset first byte
+    @param length number of bytes
+    @return hex string
+     */
+    public static String bytesToHex(byte[] bytes, int offset, int length) {
+        char[] hexChars = new char[length * 2];
+        for (int j = 0; j < length; j++) {
+            int v = bytes[offset + j] & 0xFF;
+            hexChars[j * 2] = HEX_CHARS[v >>> 4];
+            hexChars[j * 2 + 1] = HEX_CHARS[v & 0x0F];
         }
+        return new String(hexChars);
     }
 
     /*
@@ -309,22 +795,44 @@ public class HexUtils {
     @return byteArray of hex
      */
     public static byte[] recordToByteArray(String hexString, int offset, int packetNum){
-        int len = hexString.length();
-        byte[] data = new byte[(len/2) + 4];
-        for(int i=0; i < len; i+=2){
-            data[(i / 2) + 4] = (byte) ((Character.digit(hexString.charAt(i), 16) << 4) + Character.digit(hexString.charAt(i+1), 16));
+        byte[] data = new byte[PACKET_HEADER_SIZE + hexString.length() / 2];
+        recordToByteArray(hexString, offset, packetNum, data, 0);
+        return data;
+    }
+
+    /*
+    Record to byte Array, without allocating
+    @param hexString string to convert
+    @param offset address offset to send in the header
+    @param packetNum packet number
+    @param buffer to write the packet into
+    @param bufferOffset where the packet starts in buffer
+    @return number of bytes written
+     */
+    public static int recordToByteArray(CharSequence hexString, int offset, int packetNum, byte[] buffer, int bufferOffset){
+        int len = hexString.length() / 2;
+        for (int i = 0; i < len; i++) {
+            int hi = HEX_VALUES[hexString.charAt(i * 2) & 0xFF];
+            int lo = HEX_VALUES[hexString.charAt(i * 2 + 1) & 0xFF];
+            buffer[bufferOffset + PACKET_HEADER_SIZE + i] = (byte) ((hi << 4) + lo);
         }
+        writePacketHeader(offset, packetNum, buffer, bufferOffset);
+        return PACKET_HEADER_SIZE + len;
+    }
 
+    /*
+    Write the header of a partial flashing WRITE command
+    @param offset address offset to send
+    @param packetNum packet number
+    @param buffer to write the header into
+    @param bufferOffset where the packet starts in buffer
+     */
+    public static void writePacketHeader(int offset, int packetNum, byte[] buffer, int bufferOffset){
         // WRITE Command
-        data[0] = 0x01;
-
-        data[1]   = (byte)(offset >> 8);
-        data[2] = (byte)(offset & 0xFF);
-        data[3] = (byte)(packetNum & 0xFF);
-
-        Log.v(TAG, "Sent: " + data.toString());
+        buffer[bufferOffset] = 0x01;
 
-        return data;
+        buffer[bufferOffset + 1] = (byte)(offset >> 8);
+        buffer[bufferOffset + 2] = (byte)(offset & 0xFF);
+        buffer[bufferOffset + 3] = (byte)(packetNum & 0xFF);
     }
 }
-
@@ -0,0 +1,174 @@
+package org.microbit.android.partialflashing;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Latencies observed while flashing, used to choose timeouts
+ *
+ * Each series keeps the most recent samples of one phase, such as the round trip of a
+ * batch, for one scope: a device address or a phone model. Timeouts are derived from a
+ * high percentile of the samples plus a margin, so a fast link detects failures sooner
+ * and a slow one is given more time. Until a series has enough samples the fixed
+ * default is used.
+ *
+ * A process-wide instance is shared by flashes, and can be read by the host app.
+ *
+ * (c) 2017 - 2021, Micro:bit Educational Foundation and contributors
+ *
+ * SPDX-License-Identifier: MIT
+ */
+
+public class LatencyStats {
+    // Phases
+    public static final String PHASE_CONNECT = "connect";   // connectGatt() until ready to flash
+    public static final String PHASE_BATCH = "batch";       // first packet of a batch until acknowledged
+
+    public static final int MIN_SAMPLES = 8;
+    public static final int MAX_SAMPLES = 256;
+
+    private static LatencyStats instance = null;
+
+    private final Map<String, Series> series = new LinkedHashMap<String, Series>();
+
+    /*
+     * The recent samples of one phase in one scope
+     */
+    public static class Series {
+        private final long[] samples = new long[MAX_SAMPLES];
+        private long count = 0;
+
+        /*
+         * @param ms latency in milliseconds
+         */
+        public synchronized void add(long ms) {
+            samples[(int) (count++ % MAX_SAMPLES)] = ms;
+        }
+
+        public synchronized int getCount() {
+            return (int) Math.min(count, MAX_SAMPLES);
+        }
+
+        /*
+         * @param percentile 0 to 100
+         * @return latency in milliseconds, or -1 if there are fewer than MIN_SAMPLES
+         */
+        public synchronized long getPercentile(double percentile) {
+            int n = getCount();
+            if (n < MIN_SAMPLES) {
+                return -1;
+            }
+            long[] sorted = Arrays.copyOf(samples, n);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percentile / 100.0 * n) - 1;
+            return sorted[Math.max(0, Math.min(n - 1, index))];
+        }
+
+        public synchronized void clear() {
+            count = 0;
+        }
+    }
+
+    /*
+     * Percentiles of a series, for the host app
+     */
+    public static class Summary {
+        public final int count;
+        public final long p50;
+        public final long p90;
+        public final long p99;
+
+        public Summary(int count, long p50, long p90, long p99) {
+            this.count = count;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+        }
+    }
+
+    public static synchronized LatencyStats getInstance() {
+        if (instance == null) {
+            instance = new LatencyStats();
+        }
+        return instance;
+    }
+
+    public static String deviceScope(String address) {
+        return "device:" + address;
+    }
+
+    public static String modelScope(String model) {
+        return "model:" + model;
+    }
+
+    /*
+     * @param scope from deviceScope() or modelScope()
+     * @param phase one of the PHASE_ values
+     * @return the series, created if needed
+     */
+    public synchronized Series getSeries(String scope, String phase) {
+        String key = scope + "/" + phase;
+        Series s = series.get(key);
+        if (s == null) {
+            s = new Series();
+            series.put(key, s);
+        }
+        return s;
+    }
+
+    /*
+     * Derive a timeout from the first series with enough samples
+     * @param percentile of the samples to use, 0 to 100
+     * @param factor multiplies the percentile
+     * @param margin added, in ms
+     * @param min shortest timeout, in ms
+     * @param max longest timeout, in ms
+     * @param defaultTimeout used when no series has enough samples
+     * @param candidates series to try, most specific first
+     * @return timeout in ms
+     */
+    public static long timeout(double percentile, double factor, long margin, long min, long max,
+                               long defaultTimeout, Series... candidates) {
+        for (Series s : candidates) {
+            long latency = s.getPercentile(percentile);
+            if (latency >= 0) {
+                long t = (long) (latency * factor) + margin;
+                return Math.max(min, Math.min(max, t));
+            }
+        }
+        return defaultTimeout;
+    }
+
+    /*
+     * @return percentiles of every series with samples, by scope/phase
+     */
+    public synchronized Map<String, Summary> getSummaries() {
+        Map<String, Summary> summaries = new LinkedHashMap<String, Summary>();
+        for (Map.Entry<String, Series> entry : series.entrySet()) {
+            Series s = entry.getValue();
+            int n = s.getCount();
+            if (n == 0) {
+                continue;
+            }
+            summaries.put(entry.getKey(), new Summary(n,
+                    percentileOfAll(s, 50), percentileOfAll(s, 90), percentileOfAll(s, 99)));
+        }
+        return summaries;
+    }
+
+    public synchronized void clear() {
+        series.clear();
+    }
+
+    // Percentile without the MIN_SAMPLES limit, for reporting
+    private static long percentileOfAll(Series s, double percentile) {
+        synchronized (s) {
+            int n = s.getCount();
+            long[] sorted = Arrays.copyOf(s.samples, n);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percentile / 100.0 * n) - 1;
+            return sorted[Math.max(0, Math.min(n - 1, index))];
+        }
+    }
+}
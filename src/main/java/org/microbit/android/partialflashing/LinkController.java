@@ -0,0 +1,123 @@
+package org.microbit.android.partialflashing;
+
+import android.annotation.SuppressLint;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.os.Build;
+
+/**
+ * Connection parameters for the transfer phase
+ *
+ * Before the packets are sent, the link is asked for high connection priority, which
+ * shortens the connection interval, and for the 2M PHY where the phone supports it.
+ * The GATT callbacks report what was granted. When the transfer ends the link goes back
+ * to balanced priority, the Android default.
+ *
+ * (c) 2017 - 2021, Micro:bit Educational Foundation and contributors
+ *
+ * SPDX-License-Identifier: MIT
+ */
+
+public class LinkController {
+    public static final int UNKNOWN = -1;
+
+    // Written by GATT callbacks, read by the worker thread
+    private volatile int txPhy = UNKNOWN;
+    private volatile int rxPhy = UNKNOWN;
+    private volatile int interval = UNKNOWN;    // units of 1.25ms
+    private volatile int latency = UNKNOWN;     // connection events
+    private volatile int supervisionTimeout = UNKNOWN;  // units of 10ms
+    private volatile boolean raised = false;
+
+    public void reset() {
+        txPhy = UNKNOWN;
+        rxPhy = UNKNOWN;
+        interval = UNKNOWN;
+        latency = UNKNOWN;
+        supervisionTimeout = UNKNOWN;
+        raised = false;
+    }
+
+    /*
+     * Ask for high priority and the 2M PHY
+     * @return true if the priority request was accepted
+     */
+    @SuppressLint("MissingPermission")
+    public boolean raise(BluetoothGatt gatt) {
+        raised = gatt.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            gatt.setPreferredPhy(BluetoothDevice.PHY_LE_2M_MASK, BluetoothDevice.PHY_LE_2M_MASK,
+                    BluetoothDevice.PHY_OPTION_NO_PREFERRED);
+            // No update is reported if the PHY is already 2M
+            gatt.readPhy();
+        }
+        return raised;
+    }
+
+    /*
+     * Go back to balanced priority, if raise() changed it
+     */
+    @SuppressLint("MissingPermission")
+    public void restore(BluetoothGatt gatt) {
+        if (raised && gatt != null) {
+            gatt.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_BALANCED);
+        }
+        raised = false;
+    }
+
+    /*
+     * Called from BluetoothGattCallback.onPhyUpdate() and onPhyRead()
+     */
+    public void onPhyUpdate(int txPhy, int rxPhy, int status) {
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            this.txPhy = txPhy;
+            this.rxPhy = rxPhy;
+        }
+    }
+
+    /*
+     * Called from BluetoothGattCallback.onConnectionUpdated(), which is hidden but called on Android 8+
+     */
+    public void onConnectionUpdated(int interval, int latency, int timeout, int status) {
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            this.interval = interval;
+            this.latency = latency;
+            this.supervisionTimeout = timeout;
+        }
+    }
+
+    /*
+     * @return transmit PHY, such as BluetoothDevice.PHY_LE_2M, or UNKNOWN
+     */
+    public int getTxPhy() {
+        return txPhy;
+    }
+
+    /*
+     * @return receive PHY, such as BluetoothDevice.PHY_LE_2M, or UNKNOWN
+     */
+    public int getRxPhy() {
+        return rxPhy;
+    }
+
+    /*
+     * @return connection interval in units of 1.25ms, or UNKNOWN
+     */
+    public int getInterval() {
+        return interval;
+    }
+
+    /*
+     * @return slave latency in connection events, or UNKNOWN
+     */
+    public int getLatency() {
+        return latency;
+    }
+
+    /*
+     * @return supervision timeout in units of 10ms, or UNKNOWN
+     */
+    public int getSupervisionTimeout() {
+        return supervisionTimeout;
+    }
+}
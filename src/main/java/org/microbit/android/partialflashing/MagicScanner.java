@@ -0,0 +1,222 @@
+package org.microbit.android.partialflashing;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A class to find several magic markers in hex file data in a single pass
+ *
+ * Markers are given as strings of hex digits. ".." matches any byte, so a marker
+ * may be split into fixed parts separated by gaps of a known length. All the fixed
+ * parts are matched together by one Aho-Corasick automaton over the raw bytes.
+ * When the last part of a marker is found, the earlier parts are checked in place,
+ * so repeated or overlapping occurrences of a part cannot hide a match.
+ *
+ * (c) 2017 - 2021, Micro:bit Educational Foundation and contributors
+ *
+ * SPDX-License-Identifier: MIT
+ */
+
+public class MagicScanner {
+
+    /*
+     * A marker found in a hex file
+     */
+    public static class Match {
+        public final int marker;    // index of the marker passed to the constructor
+        public final int index;     // index of the record containing the first byte
+        public final int offset;    // offset into the record data in bytes
+        public final long address;  // absolute address of the first byte
+
+        public Match(int marker, int index, int offset, long address) {
+            this.marker = marker;
+            this.index = index;
+            this.offset = offset;
+            this.address = address;
+        }
+    }
+
+    /*
+     * Receives the markers found by scan()
+     */
+    public interface Listener {
+        /*
+         * @param marker index of the marker passed to the constructor
+         * @param position of the first byte of the marker in the scanned data
+         */
+        void onMarker(int marker, int position);
+    }
+
+    private static final int ALPHABET = 256;
+
+    private final int markerCount;
+    private final int[] markerLengths;
+    private final int[] markerFirstParts;
+    private final int[] markerLastParts;
+
+    // Fixed parts of the markers
+    private final int[] partMarkers;
+    private final int[] partOffsets;    // offset of the part in its marker
+    private final int[] partLengths;
+    private final byte[][] partBytes;
+
+    // Automaton
+    private final int[] transitions;    // state * ALPHABET + byte -> state
+    private final long[] outputs;       // state -> bit mask of parts ending in that state
+
+    /*
+     * @param markers strings of hex digits, with ".." for any byte
+     */
+    public MagicScanner(String... markers) {
+        markerCount = markers.length;
+        markerLengths = new int[markerCount];
+        markerFirstParts = new int[markerCount];
+        markerLastParts = new int[markerCount];
+
+        List<byte[]> parts = new ArrayList<byte[]>();
+        List<int[]> partInfo = new ArrayList<int[]>();
+        for (int m = 0; m < markerCount; m++) {
+            String marker = markers[m];
+            if (marker.length() % 2 != 0) {
+                throw new IllegalArgumentException("Marker must be whole bytes: " + marker);
+            }
+            markerLengths[m] = marker.length() / 2;
+            markerFirstParts[m] = parts.size();
+            int i = 0;
+            while (i < marker.length()) {
+                if (marker.charAt(i) == '.') {
+                    i += 2;
+                    continue;
+                }
+                int end = i;
+                while (end < marker.length() && marker.charAt(end) != '.') {
+                    end += 2;
+                }
+                byte[] part = HexUtils.hexToBytes(marker.substring(i, end));
+                if (part == null) {
+                    throw new IllegalArgumentException("Invalid marker: " + marker);
+                }
+                markerLastParts[m] = parts.size();
+                parts.add(part);
+                partInfo.add(new int[]{m, i / 2});
+                i = end;
+            }
+            if (markerFirstParts[m] == parts.size()) {
+                throw new IllegalArgumentException("Marker has no fixed bytes: " + marker);
+            }
+        }
+        if (parts.size() > 64) {
+            throw new IllegalArgumentException("Too many marker parts");
+        }
+
+        int partCount = parts.size();
+        partMarkers = new int[partCount];
+        partOffsets = new int[partCount];
+        partLengths = new int[partCount];
+        partBytes = parts.toArray(new byte[partCount][]);
+        int maxStates = 1;
+        for (int p = 0; p < partCount; p++) {
+            partMarkers[p] = partInfo.get(p)[0];
+            partOffsets[p] = partInfo.get(p)[1];
+            partLengths[p] = parts.get(p).length;
+            maxStates += partLengths[p];
+        }
+
+        // Trie
+        int[] trie = new int[maxStates * ALPHABET];
+        Arrays.fill(trie, -1);
+        long[] out = new long[maxStates];
+        int states = 1;
+        for (int p = 0; p < partCount; p++) {
+            int state = 0;
+            for (byte b : parts.get(p)) {
+                int t = state * ALPHABET + (b & 0xFF);
+                if (trie[t] < 0) {
+                    trie[t] = states++;
+                }
+                state = trie[t];
+            }
+            // Only the last part of a marker is reported, and the others checked then
+            if (p == markerLastParts[partMarkers[p]]) {
+                out[state] |= 1L << p;
+            }
+        }
+
+        // Failure links, folded into a complete transition table
+        int[] fail = new int[states];
+        ArrayDeque<Integer> queue = new ArrayDeque<Integer>();
+        for (int c = 0; c < ALPHABET; c++) {
+            int next = trie[c];
+            if (next < 0) {
+                trie[c] = 0;
+            } else {
+                fail[next] = 0;
+                queue.add(next);
+            }
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            out[state] |= out[fail[state]];
+            for (int c = 0; c < ALPHABET; c++) {
+                int t = state * ALPHABET + c;
+                int next = trie[t];
+                if (next < 0) {
+                    trie[t] = trie[fail[state] * ALPHABET + c];
+                } else {
+                    fail[next] = trie[fail[state] * ALPHABET + c];
+                    queue.add(next);
+                }
+            }
+        }
+
+        transitions = Arrays.copyOf(trie, states * ALPHABET);
+        outputs = Arrays.copyOf(out, states);
+    }
+
+    public int getMarkerCount() {
+        return markerCount;
+    }
+
+    public int getMarkerLength(int marker) {
+        return markerLengths[marker];
+    }
+
+    /*
+     * Scan a range of bytes for all the markers
+     * @param data bytes to scan
+     * @param from first byte to scan
+     * @param to end of the range to scan
+     * @param listener receives each marker found, in order of position
+     */
+    public void scan(byte[] data, int from, int to, Listener listener) {
+        int state = 0;
+        for (int pos = from; pos < to; pos++) {
+            state = transitions[state * ALPHABET + (data[pos] & 0xFF)];
+            long found = outputs[state];
+            while (found != 0) {
+                int part = Long.numberOfTrailingZeros(found);
+                found &= found - 1;
+                int start = pos + 1 - partLengths[part] - partOffsets[part];
+                if (start >= from && earlierPartsMatch(part, data, start)) {
+                    listener.onMarker(partMarkers[part], start);
+                }
+            }
+        }
+    }
+
+    // Check the parts before the last one of a marker, at their offsets from start
+    private boolean earlierPartsMatch(int lastPart, byte[] data, int start) {
+        for (int p = markerFirstParts[partMarkers[lastPart]]; p < lastPart; p++) {
+            byte[] part = partBytes[p];
+            int at = start + partOffsets[p];
+            for (int i = 0; i < part.length; i++) {
+                if (data[at + i] != part[i]) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,122 @@
+package org.microbit.android.partialflashing;
+
+/**
+ * The memory regions reported by the micro:bit partial flashing service
+ *
+ * Filled from REGION_INFO_COMMAND notifications, in whatever order they arrive.
+ * A notification is
+ * [ command, region ID, start address (4 bytes), end address (4 bytes), hash (8 bytes) ]
+ * with addresses big endian.
+ *
+ * Firmware that supports faster transfers appends capability bytes to the notification
+ * [ ..., max packet data size / 16, batch window ]
+ * Zero or absent means the defaults of 16 bytes per packet and one batch at a time.
+ *
+ * (c) 2017 - 2021, Micro:bit Educational Foundation and contributors
+ *
+ * SPDX-License-Identifier: MIT
+ */
+
+public class MemoryMap {
+    public static final int REGION_SD = 0;
+    public static final int REGION_DAL = 1;
+    public static final int REGION_MAKECODE = 2;
+    public static final int REGION_COUNT = 3;
+
+    private static final int NOTIFICATION_SIZE = 18;
+    private static final int CAPABILITY_PACKET_SIZE = 18;
+    private static final int CAPABILITY_BATCH_WINDOW = 19;
+
+    public static class Region {
+        public final int id;
+        public final long startAddress;
+        public final long endAddress;
+        public final String hash;   // hex
+
+        public Region(int id, long startAddress, long endAddress, String hash) {
+            this.id = id;
+            this.startAddress = startAddress;
+            this.endAddress = endAddress;
+            this.hash = hash;
+        }
+    }
+
+    private final Region[] regions = new Region[REGION_COUNT];
+    private int received = 0;
+    private int maxPacketDataSize = 0;
+    private int batchWindow = 0;
+
+    public synchronized void clear() {
+        for (int i = 0; i < regions.length; i++) {
+            regions[i] = null;
+        }
+        received = 0;
+        maxPacketDataSize = 0;
+        batchWindow = 0;
+    }
+
+    /*
+     * Add a region from a REGION_INFO_COMMAND notification
+     * @param notification value of the notification
+     * @return the region, or null if the notification is not a known region
+     */
+    public synchronized Region add(byte[] notification) {
+        if (notification.length < NOTIFICATION_SIZE) {
+            return null;
+        }
+        int id = notification[1] & 0xFF;
+        if (id >= regions.length) {
+            return null;
+        }
+        Region region = new Region(id,
+                toUint32(notification, 2),
+                toUint32(notification, 6),
+                HexUtils.bytesToHex(notification, 10, 8));
+        if (regions[id] == null) {
+            received++;
+        }
+        if (notification.length > CAPABILITY_PACKET_SIZE) {
+            maxPacketDataSize = (notification[CAPABILITY_PACKET_SIZE] & 0xFF) * 16;
+        }
+        if (notification.length > CAPABILITY_BATCH_WINDOW) {
+            batchWindow = notification[CAPABILITY_BATCH_WINDOW] & 0xFF;
+        }
+        regions[id] = region;
+        return region;
+    }
+
+    /*
+     * @return the region, or null if it has not been received
+     */
+    public synchronized Region get(int id) {
+        return id >= 0 && id < regions.length ? regions[id] : null;
+    }
+
+    /*
+     * @return true when every region has been received
+     */
+    public synchronized boolean isComplete() {
+        return received == regions.length;
+    }
+
+    /*
+     * @return most data bytes per packet the firmware accepts, or 0 if not advertised
+     */
+    public synchronized int getMaxPacketDataSize() {
+        return maxPacketDataSize;
+    }
+
+    /*
+     * @return batches the firmware accepts before acknowledging, or 0 if not advertised
+     */
+    public synchronized int getBatchWindow() {
+        return batchWindow;
+    }
+
+    private static long toUint32(byte[] data, int idx) {
+        return ((long) (data[idx] & 0xFF) << 24)
+                | ((data[idx + 1] & 0xFF) << 16)
+                | ((data[idx + 2] & 0xFF) << 8)
+                | (data[idx + 3] & 0xFF);
+    }
+}
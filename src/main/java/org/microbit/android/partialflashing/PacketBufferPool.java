@@ -0,0 +1,63 @@
+package org.microbit.android.partialflashing;
+
+/**
+ * A small pool of packet buffers
+ *
+ * BLE writes take the whole array, so buffers are kept by exact length. Once the pool
+ * has warmed up, sending packets of the usual few lengths allocates nothing.
+ *
+ * (c) 2017 - 2021, Micro:bit Educational Foundation and contributors
+ *
+ * SPDX-License-Identifier: MIT
+ */
+
+public class PacketBufferPool {
+    private final byte[][][] free;      // length -> free buffers of that length, allocated on first use
+    private final int[] freeCounts;
+    private final int buffersPerLength;
+
+    /*
+     * @param maxLength longest buffer kept by the pool
+     * @param buffersPerLength free buffers kept for each length
+     */
+    public PacketBufferPool(int maxLength, int buffersPerLength) {
+        free = new byte[maxLength + 1][][];
+        freeCounts = new int[maxLength + 1];
+        this.buffersPerLength = buffersPerLength;
+    }
+
+    /*
+     * Take a buffer from the pool
+     * @param length exact length of the buffer
+     * @return a buffer, allocated if none is free. Contents are undefined.
+     */
+    public synchronized byte[] obtain(int length) {
+        if (length < free.length && freeCounts[length] > 0) {
+            int n = --freeCounts[length];
+            byte[] buffer = free[length][n];
+            free[length][n] = null;
+            return buffer;
+        }
+        return new byte[length];
+    }
+
+    /*
+     * Return a buffer to the pool once it is no longer in use
+     * @param buffer from obtain(). Dropped if the pool is full.
+     */
+    public synchronized void recycle(byte[] buffer) {
+        if (buffer == null) {
+            return;
+        }
+        int length = buffer.length;
+        if (length >= free.length) {
+            return;
+        }
+        if (free[length] == null) {
+            free[length] = new byte[buffersPerLength][];
+        }
+        if (freeCounts[length] < buffersPerLength) {
+            free[length][freeCounts[length]++] = buffer;
+        }
+    }
+}
@@ -0,0 +1,316 @@
+package org.microbit.android.partialflashing;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Flashes one program to many micro:bits, several at a time
+ *
+ * Every device gets its own transport, protocol and PartialFlashSession, so no state is
+ * shared between sessions except the prepared image. Its plans for 16 and 240 byte
+ * packets, the sizes most firmware and links allow, are compiled when the engine is
+ * created. A plan for another packet size is compiled by the first session that needs
+ * it, under the image's lock, and shared after that. Up to the concurrency limit of
+ * sessions run at once; the rest wait in order. Phones usually allow a handful of BLE
+ * connections, so the limit should stay small.
+ *
+ * Progress and results are reported per device. Bytes acknowledged by all sessions are
+ * counted together, for the throughput of the whole batch.
+ *
+ * (c) 2017 - 2021, Micro:bit Educational Foundation and contributors
+ *
+ * SPDX-License-Identifier: MIT
+ */
+
+public class PartialFlashEngine {
+    public static final int DEFAULT_CONCURRENCY = 4;
+
+    private final PartialFlashImage image;
+    private final TransportFactory transportFactory;
+    private final ExecutorService executor;
+    private final int concurrency;
+
+    private volatile Listener listener = null;
+    private volatile boolean adaptiveTimeouts = true;
+    private volatile int batchWindow = 0;
+    private volatile boolean aborted = false;
+    private final List<PartialFlashSession> running = new ArrayList<PartialFlashSession>();
+
+    // Whole batch
+    private final AtomicInteger submitted = new AtomicInteger();
+    private final AtomicInteger succeeded = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicLong bytesFlashed = new AtomicLong();
+    private final AtomicLong firstStart = new AtomicLong( -1);
+    private final AtomicLong lastEnd = new AtomicLong( -1);
+
+    public interface TransportFactory {
+        /*
+         * @return a new, unconnected transport to the device
+         */
+        PartialFlashTransport create( String deviceAddress);
+    }
+
+    public interface Listener {
+        /*
+         * Called on the session's thread
+         * @param percent 0 to 100
+         */
+        void onProgress( String deviceAddress, int percent);
+
+        /*
+         * Called on the session's thread
+         */
+        void onComplete( Result result);
+    }
+
+    /*
+     * The outcome for one device
+     */
+    public static class Result {
+        public final String deviceAddress;
+        public final int result;            // one of the PartialFlashSession.RESULT_ values
+        public final String failure;        // or null
+        public final long dataBytes;        // acknowledged by the device
+        public final long time;             // whole session, in ms
+        public final int retransmits;
+
+        public Result( String deviceAddress, int result, String failure, long dataBytes, long time, int retransmits) {
+            this.deviceAddress = deviceAddress;
+            this.result = result;
+            this.failure = failure;
+            this.dataBytes = dataBytes;
+            this.time = time;
+            this.retransmits = retransmits;
+        }
+    }
+
+    /*
+     * @param image located for the board type being flashed
+     * @param transportFactory makes a transport for each device
+     * @param concurrency most sessions at once
+     */
+    public PartialFlashEngine( PartialFlashImage image, TransportFactory transportFactory, int concurrency) {
+        if ( concurrency < 1) {
+            throw new IllegalArgumentException( "concurrency must be at least 1");
+        }
+        this.image = image;
+        this.transportFactory = transportFactory;
+        this.concurrency = concurrency;
+
+        // Compile before the sessions share the image
+        if ( image.hasPartialFlashData()) {
+            image.getPlan();
+            image.getPlan( PartialFlashPlan.MAX_PACKET_DATA_SIZE);
+        }
+
+        final AtomicInteger threads = new AtomicInteger();
+        executor = Executors.newFixedThreadPool( concurrency, new ThreadFactory() {
+            @Override
+            public Thread newThread( Runnable r) {
+                Thread t = new Thread( r, "PartialFlashEngine-" + threads.incrementAndGet());
+                t.setDaemon( true);
+                return t;
+            }
+        });
+    }
+
+    public PartialFlashImage getImage() {
+        return image;
+    }
+
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    public void setListener( Listener listener) {
+        this.listener = listener;
+    }
+
+    /*
+     * @param adaptive derive timeouts from the latencies seen for each device
+     */
+    public void setAdaptiveTimeouts( boolean adaptive) {
+        adaptiveTimeouts = adaptive;
+    }
+
+    /*
+     * @param window batches in flight, or 0 for what each micro:bit advertises
+     */
+    public void setBatchWindow( int window) {
+        batchWindow = window;
+    }
+
+    /*
+     * Queue a device to be flashed
+     * @return the result, when the session ends
+     */
+    public Future<Result> submit( final String deviceAddress) {
+        submitted.incrementAndGet();
+        return executor.submit( new Callable<Result>() {
+            @Override
+            public Result call() throws Exception {
+                return flashDevice( deviceAddress);
+            }
+        });
+    }
+
+    /*
+     * Flash every device and wait for them all
+     * @return results in the order of the addresses
+     */
+    public List<Result> flashAll( Collection<String> deviceAddresses) throws InterruptedException {
+        List<Future<Result>> futures = new ArrayList<Future<Result>>();
+        for ( String address : deviceAddresses) {
+            futures.add( submit( address));
+        }
+        List<Result> results = new ArrayList<Result>();
+        for ( Future<Result> future : futures) {
+            try {
+                results.add( future.get());
+            } catch ( ExecutionException e) {
+                throw new IllegalStateException( e.getCause());
+            }
+        }
+        return results;
+    }
+
+    /*
+     * End the running sessions and skip the queued ones
+     */
+    public void abort() {
+        synchronized (running) {
+            aborted = true;
+            for ( PartialFlashSession session : running) {
+                session.abort();
+            }
+        }
+    }
+
+    /*
+     * Stop the worker threads once queued sessions have run
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    public int getSubmittedCount() {
+        return submitted.get();
+    }
+
+    public int getSucceededCount() {
+        return succeeded.get();
+    }
+
+    public int getFailedCount() {
+        return failed.get();
+    }
+
+    /*
+     * @return data bytes acknowledged by the sessions that have ended
+     */
+    public long getBytesFlashed() {
+        return bytesFlashed.get();
+    }
+
+    /*
+     * @return data bytes per second over the whole batch, from the first session
+     *         starting to the latest one ending, or 0
+     */
+    public double getAggregateThroughput() {
+        long start = firstStart.get();
+        long end = lastEnd.get();
+        if ( start < 0 || end <= start) {
+            return 0;
+        }
+        return bytesFlashed.get() * 1000.0 / ( end - start);
+    }
+
+    private Result flashDevice( final String deviceAddress) throws InterruptedException {
+        long start = now();
+        firstStart.compareAndSet( -1, start);
+        if ( aborted) {
+            return finish( new Result( deviceAddress, PartialFlashSession.RESULT_ATTEMPT_DFU, "Aborted", 0, 0, 0));
+        }
+
+        PartialFlashTransport transport = transportFactory.create( deviceAddress);
+        PartialFlashSession session = new PartialFlashSession( new PartialFlashProtocol( transport, new FlashTrace()), image);
+        LatencyStats stats = LatencyStats.getInstance();
+        session.setBatchLatency( stats.getSeries( LatencyStats.deviceScope( deviceAddress), LatencyStats.PHASE_BATCH));
+        session.setAdaptiveTimeouts( adaptiveTimeouts);
+        session.setBatchWindow( batchWindow);
+        session.setListener( new PartialFlashSession.Listener() {
+            @Override
+            public void onTransferStart( PartialFlashPlan plan) {
+            }
+
+            @Override
+            public void onProgress( int percent) {
+                Listener l = listener;
+                if ( l != null) {
+                    l.onProgress( deviceAddress, percent);
+                }
+            }
+        });
+
+        // Registered and checked under one lock, so abort() either sees the session or
+        // the session sees the abort
+        boolean skip;
+        synchronized (running) {
+            skip = aborted;
+            if ( !skip) {
+                running.add( session);
+            }
+        }
+        if ( skip) {
+            return finish( new Result( deviceAddress, PartialFlashSession.RESULT_ATTEMPT_DFU, "Aborted", 0, 0, 0));
+        }
+        int result;
+        try {
+            result = session.run();
+        } finally {
+            synchronized (running) {
+                running.remove( session);
+            }
+            transport.disconnect();
+        }
+
+        PartialFlashPlan plan = session.getPlan();
+        PartialFlashProtocol protocol = session.getProtocol();
+        long bytes = plan != null ? plan.getDataSize( protocol.getBatchesAcknowledged()) : 0;
+        return finish( new Result( deviceAddress, result, session.getFailure(), bytes, now() - start,
+                session.getRetransmits()));
+    }
+
+    private Result finish( Result result) {
+        bytesFlashed.addAndGet( result.dataBytes);
+        if ( result.result == PartialFlashSession.RESULT_SUCCESS) {
+            succeeded.incrementAndGet();
+        } else {
+            failed.incrementAndGet();
+        }
+        long end = now();
+        long last = lastEnd.get();
+        while ( end > last && !lastEnd.compareAndSet( last, end)) {
+            last = lastEnd.get();
+        }
+        Listener l = listener;
+        if ( l != null) {
+            l.onComplete( result);
+        }
+        return result;
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+}
@@ -0,0 +1,346 @@
+package org.microbit.android.partialflashing;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * A parsed hex file with its partial flashing data located
+ *
+ * Holds the parsed file, where the MakeCode or MicroPython code starts and the hash the
+ * micro:bit must match for partial flashing. Not modified once located, so it can be
+ * cached and used for more than one flash.
+ *
+ * (c) 2017 - 2021, Micro:bit Educational Foundation and contributors
+ *
+ * SPDX-License-Identifier: MIT
+ */
+
+public class PartialFlashImage {
+    public static final String PXT_MAGIC = "708E3B92C615A841C49866C975EE5197";
+    public static final String UPY_MAGIC1 = "FE307F59";
+    public static final String UPY_MAGIC2 = "9DD7B1C1";
+
+    // Markers located by a single scan of the hex file
+    private static final int MARKER_PXT = 0;
+    private static final int MARKER_UPY = 1;
+    private static final MagicScanner MARKERS = new MagicScanner(
+            PXT_MAGIC,
+            UPY_MAGIC1 + "................" + UPY_MAGIC2);
+
+    //    Micropython region table
+    //    https://github.com/microbit-foundation/micropython-microbit-v2/blob/a76e1413bcd66f128a31d98756fc3d1f336d1580/src/addlayouttable.py
+
+    public final static int PYTHON_HEADER_SIZE = 16;
+    public final static int PYTHON_REGION_SIZE = 16;
+
+    private final HexUtils hex;
+    private final int board;
+    private boolean python = false;
+    private String fileHash = null;
+    private HexPos dataPos = null;
+    // Compiled plans, by packet data size / 16
+    private final PartialFlashPlan[] plans = new PartialFlashPlan[ PartialFlashPlan.MAX_PACKET_DATA_SIZE / PartialFlashPlan.PACKET_DATA_SIZE + 1];
+
+    private static class HexPos {
+        public int line;
+        public int part; // offset into line data in bytes
+        public int sizeBytes;
+    }
+
+    private PartialFlashImage(HexUtils hex, int board) {
+        this.hex = hex;
+        this.board = board;
+    }
+
+    /*
+     * Parse a hex file and locate its partial flashing data
+     * @param filePath hex file
+     * @param board HexUtils.BOARD_V1 or HexUtils.BOARD_V2
+     * @return the image. hasPartialFlashData() is false if no data was found.
+     */
+    public static PartialFlashImage locate(String filePath, int board) throws IOException {
+        return locate( new HexUtils(filePath, board), board);
+    }
+
+    /*
+     * Locate the partial flashing data in a parsed hex file
+     * @param hex parsed for board
+     * @param board HexUtils.BOARD_V1 or HexUtils.BOARD_V2
+     */
+    static PartialFlashImage locate(HexUtils hex, int board) throws IOException {
+        PartialFlashImage image = new PartialFlashImage(hex, board);
+        List<MagicScanner.Match> markers = image.hex.searchForMarkers( MARKERS);
+        image.dataPos = image.findMakeCodeData( markers);
+        if ( image.dataPos == null) {
+            image.dataPos = image.findPythonData( markers);
+            image.python = image.dataPos != null;
+        }
+        if ( image.dataPos == null) {
+            image.fileHash = null;
+        }
+        return image;
+    }
+
+    public HexUtils getHex() {
+        return hex;
+    }
+
+    public int getBoard() {
+        return board;
+    }
+
+    /*
+     * @return bytes in a flash page of the board
+     */
+    public int getPageSize() {
+        return board == HexUtils.BOARD_V2 ? 0x1000 : 0x400;
+    }
+
+    public boolean hasPartialFlashData() {
+        return dataPos != null && fileHash != null;
+    }
+
+    public boolean isPython() {
+        return python;
+    }
+
+    /*
+     * @return the hash the micro:bit DAL or MicroPython region must match, as hex
+     */
+    public String getFileHash() {
+        return fileHash;
+    }
+
+    /*
+     * @return index of the record where the code starts
+     */
+    public int getDataLine() {
+        return dataPos.line;
+    }
+
+    /*
+     * @return offset into the data of the first record, in bytes
+     */
+    public int getDataPart() {
+        return dataPos.part;
+    }
+
+    /*
+     * @return the packets to send with 16 data bytes per packet, compiled on first use
+     */
+    public PartialFlashPlan getPlan() {
+        return getPlan( PartialFlashPlan.PACKET_DATA_SIZE);
+    }
+
+    /*
+     * @param packetDataSize most data bytes in a packet, a multiple of 16
+     * @return the packets to send, compiled on first use
+     */
+    public synchronized PartialFlashPlan getPlan( int packetDataSize) {
+        int slot = packetDataSize / PartialFlashPlan.PACKET_DATA_SIZE;
+        if ( slot >= plans.length || packetDataSize % PartialFlashPlan.PACKET_DATA_SIZE != 0) {
+            return PartialFlashPlan.compile( this, packetDataSize);    // throws
+        }
+        if ( plans[ slot] == null) {
+            plans[ slot] = PartialFlashPlan.compile( this, packetDataSize);
+        }
+        return plans[ slot];
+    }
+
+    /*
+     * @return approximate memory used by the parsed file and the plans compiled so far, in bytes
+     */
+    public synchronized long getMemorySize() {
+        long size = hex.getMemorySize();
+        for ( PartialFlashPlan plan : plans) {
+            if ( plan != null) {
+                size += plan.getMemorySize();
+            }
+        }
+        return size;
+    }
+
+    private HexPos findMarker( List<MagicScanner.Match> markers, int marker) {
+        for ( MagicScanner.Match match : markers) {
+            if ( match.marker == marker) {
+                HexPos pos = new HexPos();
+                pos.line = match.index;
+                pos.part = match.offset;
+                return pos;
+            }
+        }
+        return null;
+    }
+
+    private HexPos findMakeCodeData( List<MagicScanner.Match> markers) throws IOException {
+        HexPos pos = findMarker( markers, MARKER_PXT);
+        if ( pos == null) {
+            return null;
+        }
+        long hdrAddress = hexPosToAddress( pos);
+        long hashAddress = hdrAddress + MARKERS.getMarkerLength( MARKER_PXT);
+        HexPos hashPos = hexAddressToPos( hashAddress);
+        if ( hashPos == null) {
+            return null;
+        }
+        hashPos.sizeBytes =  8;
+        byte[] hash = hexGetData( hashPos);
+        if ( hash.length < 8) {
+            return null;
+        }
+        fileHash = HexUtils.bytesToHex( hash, 0, hash.length);
+        // TODO - find end of data pos.sizeBytes
+        return pos;
+    }
+
+    private HexPos findPythonData( List<MagicScanner.Match> markers) throws IOException {
+        HexPos pos = findMarker( markers, MARKER_UPY);
+        if ( pos == null) {
+            return null;
+        }
+        pos.sizeBytes = PYTHON_HEADER_SIZE;
+        byte[] header = hexGetData( pos);
+        if ( header.length < PYTHON_HEADER_SIZE) {
+            return null;
+        }
+        int version     = toUint16( header, 4);
+        int table_len   = toUint16( header, 6);
+        int num_reg     = toUint16( header, 8);
+        int pageLog2    = toUint16( header, 10);
+        if ( version != 1) {
+            return null;
+        }
+        if ( table_len != num_reg * 16) {
+            return null;
+        }
+        int page = getPageSize();
+        if ( 1 << pageLog2 != page) {
+            return null;
+        }
+
+        long codeStart = -1;
+        long codeLength = -1;
+
+        long hdrAddress = hexPosToAddress( pos);
+        for ( int regionIndex = 0; regionIndex < num_reg; regionIndex++)
+        {
+            long regionAddress = hdrAddress - table_len + (long) ( regionIndex * PYTHON_REGION_SIZE);
+            pos = hexAddressToPos( regionAddress);
+            if ( pos == null) {
+                return null;
+            }
+            pos.sizeBytes =  PYTHON_REGION_SIZE;
+            byte[] region = hexGetData( pos);
+            if ( region.length < PYTHON_REGION_SIZE) {
+                return null;
+            }
+            int regionID    = toUint8(  region, 0);
+            int hashType    = toUint8(  region, 1);
+            int startPage   = toUint16( region, 2);
+            long length     = toUint32( region, 4);
+            long hashPtr    = toUint32( region, 8);
+            String hash     = HexUtils.bytesToHex( region, 8, 8);
+
+            // Extract regionHash
+            String regionHash = null;
+            switch ( hashType)
+            {
+                default:
+                    // Unknown
+                    return null;
+                case 0:
+                    //hash data is empty
+                    break;
+                case 1:
+                    // hash data contains 8 bytes of verbatim data
+                    regionHash = hash;
+                    break;
+                case 2: {
+                    // hash data contains a 4-byte pointer to a string of up tp 100 chars
+                    // hash is the crc32 of the string
+                    HexPos hashPos = hexAddressToPos( hashPtr);
+                    if ( hashPos == null) {
+                        return null;
+                    }
+                    hashPos.sizeBytes = 100;
+                    byte[] hashData = hexGetData( hashPos);
+                    if ( hashData.length == 0) {
+                        return null;
+                    }
+                    int strLen = 0;
+                    while ( strLen < hashData.length && hashData[ strLen] != 0) {
+                        strLen++;
+                    }
+                    CRC32 crc32 = new CRC32();
+                    crc32.update( hashData, 0, strLen);
+                    long crc = crc32.getValue();
+                    byte [] hashBytes = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong( crc).array();
+                    regionHash = HexUtils.bytesToHex( hashBytes, 0, hashBytes.length);
+                    break;
+                }
+            }
+
+            // Use regionHash from app region and code start & end from file system
+            switch ( regionID)
+            {
+                case 1: // softdevice
+                    break;
+                case 2: // micropython app
+                    fileHash = regionHash;
+                    break;
+                case 3: // file system
+                    codeStart = (long) startPage * page;
+                    codeLength = length;
+                    break;
+            }
+        }
+
+        if ( codeStart < 0 || codeLength < 0) {
+            return null;
+        }
+        pos = hexAddressToPos( codeStart);
+        if ( pos == null) {
+            return null;
+        }
+        pos.sizeBytes = (int) codeLength;
+        return pos;
+    }
+
+    private long hexPosToAddress( HexPos pos) {
+        return hex.getRecordAbsoluteAddressFromIndex( pos.line) + pos.part;
+    }
+
+    private HexPos hexAddressToPos( long address) throws IOException {
+        HexPos pos = new HexPos();
+        pos.line = hex.searchForAddress( address);
+        if ( pos.line < 0) {
+            return null;
+        }
+        pos.part = (int) ( address - hex.getRecordAbsoluteAddressFromIndex( pos.line));
+        return pos;
+    }
+
+    private byte[] hexGetData( final HexPos pos) {
+        byte[] data = new byte[ pos.sizeBytes];
+        int n = hex.getData( pos.line, pos.part, data, 0, pos.sizeBytes);
+        return n == data.length ? data : Arrays.copyOf( data, n);
+    }
+
+    private static int toUint8( byte[] data, int idx) {
+        return data[ idx] & 0xFF;
+    }
+
+    private static int toUint16( byte[] data, int idx)
+    {
+        return toUint8( data, idx) + toUint8( data, idx + 1) * 256;
+    }
+
+    private static long toUint32( byte[] data, int idx)
+    {
+        return toUint16( data, idx) + (long) toUint16( data, idx + 2) * 0x10000;
+    }
+}
@@ -0,0 +1,179 @@
+package org.microbit.android.partialflashing;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * A process-wide cache of located hex images
+ *
+ * Flashing the same file to several micro:bits in a row only parses and locates it once.
+ * Images are keyed by the file path, its length and a CRC32 of its contents, so a file
+ * that is rewritten in place is parsed again. The CRC32 is only computed again when the
+ * length or modification time of the file changes.
+ *
+ * The least recently used images are kept up to a byte budget. Images pushed out of the
+ * budget are held by soft references, so they can still be used until memory is needed.
+ * An image grows as plans are compiled for it, so its size is charged again on each
+ * get().
+ *
+ * (c) 2017 - 2021, Micro:bit Educational Foundation and contributors
+ *
+ * SPDX-License-Identifier: MIT
+ */
+
+public class PartialFlashImageCache {
+    public static final long DEFAULT_BYTE_BUDGET = 16 * 1024 * 1024;
+
+    private static PartialFlashImageCache instance = null;
+
+    private long byteBudget = DEFAULT_BYTE_BUDGET;
+    private long bytesUsed = 0;
+    private final LinkedHashMap<String, PartialFlashImage> images = new LinkedHashMap<String, PartialFlashImage>(16, 0.75f, true);
+    private final HashMap<String, SoftReference<PartialFlashImage>> evicted = new HashMap<String, SoftReference<PartialFlashImage>>();
+    private final HashMap<String, FileStamp> stamps = new HashMap<String, FileStamp>();
+
+    // A file's CRC32, while its length and modification time are unchanged
+    private static class FileStamp {
+        final long length;
+        final long lastModified;
+        final long crc;
+
+        FileStamp(long length, long lastModified, long crc) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.crc = crc;
+        }
+    }
+
+    public static synchronized PartialFlashImageCache getInstance() {
+        if (instance == null) {
+            instance = new PartialFlashImageCache();
+        }
+        return instance;
+    }
+
+    /*
+     * Set the memory available to images that must stay in the cache
+     * @param bytes budget. 0 leaves images to soft references only.
+     */
+    public synchronized void setByteBudget(long bytes) {
+        byteBudget = bytes;
+        trim();
+    }
+
+    public synchronized void clear() {
+        images.clear();
+        evicted.clear();
+        stamps.clear();
+        bytesUsed = 0;
+    }
+
+    /*
+     * Get the located image for a hex file, parsing it if it is not in the cache
+     * @param filePath hex file
+     * @param board HexUtils.BOARD_V1 or HexUtils.BOARD_V2
+     * @return the image
+     */
+    public PartialFlashImage get(String filePath, int board) throws IOException {
+        String key = key(filePath, board);
+
+        synchronized (this) {
+            PartialFlashImage image = images.get(key);
+            if (image != null) {
+                // Plans compiled since the last get() count towards the budget
+                trim();
+                return image;
+            }
+            SoftReference<PartialFlashImage> ref = evicted.remove(key);
+            image = ref != null ? ref.get() : null;
+            if (image != null) {
+                put(key, image);
+                return image;
+            }
+        }
+
+        PartialFlashImage image = PartialFlashImage.locate(filePath, board);
+
+        synchronized (this) {
+            PartialFlashImage existing = images.get(key);
+            if (existing != null) {
+                // Located by another thread at the same time
+                return existing;
+            }
+            put(key, image);
+        }
+        return image;
+    }
+
+    private void put(String key, PartialFlashImage image) {
+        images.put(key, image);
+        trim();
+    }
+
+    private void trim() {
+        bytesUsed = 0;
+        for (PartialFlashImage image : images.values()) {
+            bytesUsed += image.getMemorySize();
+        }
+
+        Iterator<Map.Entry<String, PartialFlashImage>> i = images.entrySet().iterator();
+        while (bytesUsed > byteBudget && i.hasNext()) {
+            Map.Entry<String, PartialFlashImage> eldest = i.next();
+            i.remove();
+            bytesUsed -= eldest.getValue().getMemorySize();
+            evicted.put(eldest.getKey(), new SoftReference<PartialFlashImage>(eldest.getValue()));
+        }
+
+        // Forget images the garbage collector has already taken
+        Iterator<SoftReference<PartialFlashImage>> refs = evicted.values().iterator();
+        while (refs.hasNext()) {
+            if (refs.next().get() == null) {
+                refs.remove();
+            }
+        }
+    }
+
+    /*
+     * Cache key - file identity, contents and the board the image is for
+     */
+    private String key(String filePath, int board) throws IOException {
+        File file = new File(filePath);
+        String path = file.getCanonicalPath();
+        long length = file.length();
+        long lastModified = file.lastModified();
+
+        FileStamp stamp;
+        synchronized (this) {
+            stamp = stamps.get(path);
+        }
+        if (stamp == null || stamp.length != length || stamp.lastModified != lastModified) {
+            stamp = new FileStamp(length, lastModified, crc(file));
+            synchronized (this) {
+                stamps.put(path, stamp);
+            }
+        }
+        return path + "|" + length + "|" + Long.toHexString(stamp.crc) + "|" + board;
+    }
+
+    private static long crc(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[64 * 1024];
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            int n;
+            while ((n = fis.read(buffer)) > 0) {
+                crc.update(buffer, 0, n);
+            }
+        } finally {
+            fis.close();
+        }
+        return crc.getValue();
+    }
+}
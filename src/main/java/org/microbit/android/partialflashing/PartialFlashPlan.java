@@ -0,0 +1,268 @@
+package org.microbit.android.partialflashing;
+
+import java.util.Arrays;
+
+/**
+ * The packets of a partial flash, compiled before the transfer starts
+ *
+ * The code from a located image is split into packets of up to 16 bytes and grouped into
+ * batches of 4 packets, the unit the micro:bit writes to flash and acknowledges. The last
+ * batch is completed with packets of 0xFF. Firmware that advertises support for larger
+ * packets is sent a multiple of 16 bytes per packet instead. Packets are encoded by encodePacket() into
+ * caller-owned buffers, with only the packet number left to fill in at send time.
+ *
+ * (c) 2017 - 2021, Micro:bit Educational Foundation and contributors
+ *
+ * SPDX-License-Identifier: MIT
+ */
+
+public class PartialFlashPlan {
+    public static final int PACKETS_PER_BATCH = 4;
+    public static final int PACKET_DATA_SIZE = 16;           // supported by all firmware
+    public static final int MAX_PACKET_DATA_SIZE = 240;      // fits the ATT payload of a 247 byte MTU
+    public static final int PACKET_HEADER_SIZE = HexUtils.PACKET_HEADER_SIZE;
+    public static final int MAX_PACKET_SIZE = PACKET_HEADER_SIZE + MAX_PACKET_DATA_SIZE;
+
+    private final PartialFlashImage image;
+    private final int packetDataSize;
+    private final int batchCount;
+    private final long[] batchAddresses;    // address of the first byte of each batch
+    private final int[] batchLines;         // line of the last packet of each batch, for progress
+    private final int[] packetOffsets;      // start of each packet in payload, plus the end
+    private final byte[] payload;
+    private final int numOfLines;
+
+    private PartialFlashPlan(PartialFlashImage image, int packetDataSize, int batchCount, long[] batchAddresses, int[] batchLines,
+                             int[] packetOffsets, byte[] payload, int numOfLines) {
+        this.image = image;
+        this.packetDataSize = packetDataSize;
+        this.batchCount = batchCount;
+        this.batchAddresses = batchAddresses;
+        this.batchLines = batchLines;
+        this.packetOffsets = packetOffsets;
+        this.payload = payload;
+        this.numOfLines = numOfLines;
+    }
+
+    /*
+     * Compile the packets for an image, with 16 data bytes per packet
+     * @see #compile(PartialFlashImage, int)
+     */
+    public static PartialFlashPlan compile(PartialFlashImage image) {
+        return compile(image, PACKET_DATA_SIZE);
+    }
+
+    /*
+     * Compile the packets for an image
+     * Packets follow the data records from the start of the code to the first record that is
+     * not a data record. A packet never spans two records.
+     * @param image located image, with partial flash data
+     * @param packetDataSize most data bytes in a packet, a multiple of 16 up to MAX_PACKET_DATA_SIZE
+     * @return the plan
+     */
+    public static PartialFlashPlan compile(PartialFlashImage image, int packetDataSize) {
+        if (packetDataSize < PACKET_DATA_SIZE || packetDataSize > MAX_PACKET_DATA_SIZE
+                || packetDataSize % PACKET_DATA_SIZE != 0) {
+            throw new IllegalArgumentException("Invalid packet data size " + packetDataSize);
+        }
+        HexUtils hex = image.getHex();
+        int numOfLines = hex.numOfLines() - image.getDataLine();
+
+        int packets = layout(image, packetDataSize, null, null, null, null);
+        int batchCount = (packets + PACKETS_PER_BATCH - 1) / PACKETS_PER_BATCH;
+
+        long[] batchAddresses = new long[batchCount];
+        int[] batchLines = new int[batchCount];
+        int[] packetOffsets = new int[batchCount * PACKETS_PER_BATCH + 1];
+        byte[] payload = new byte[batchCount * PACKETS_PER_BATCH * packetDataSize];
+        Arrays.fill(payload, (byte) 0xFF);
+        layout(image, packetDataSize, batchAddresses, batchLines, packetOffsets, payload);
+
+        // Complete the last batch with 0xFF packets, sent once its last record is done
+        int packet = packets;
+        int offset = packets > 0 ? packetOffsets[packets] : 0;
+        if (packet < packetOffsets.length - 1) {
+            batchLines[batchCount - 1]++;
+        }
+        while (packet < packetOffsets.length - 1) {
+            packetOffsets[packet++] = offset;
+            offset += packetDataSize;
+        }
+        packetOffsets[packet] = offset;
+
+        return new PartialFlashPlan(image, packetDataSize, batchCount, batchAddresses, batchLines, packetOffsets, payload, numOfLines);
+    }
+
+    /*
+     * Split the data records into packets
+     * A packet continues into the next record only if it is larger than 16 bytes and the
+     * records are contiguous, so 16 byte packets follow the records as they always have.
+     * @param batchAddresses, batchLines, packetOffsets, payload filled if not null
+     * @return number of packets, without padding
+     */
+    private static int layout(PartialFlashImage image, int packetDataSize, long[] batchAddresses,
+                              int[] batchLines, int[] packetOffsets, byte[] payload) {
+        HexUtils hex = image.getHex();
+        int firstLine = image.getDataLine();
+        boolean span = packetDataSize > PACKET_DATA_SIZE;
+        int packet = 0;
+        int offset = 0;
+        int part = image.getDataPart();
+        int line = firstLine;
+        while (true) {
+            // Skip to the next record with data left
+            while (isDataRecord(hex, line) && part >= hex.getRecordDataLengthFromIndex(line) / 2) {
+                part = 0;
+                line++;
+            }
+            if (!isDataRecord(hex, line)) {
+                break;
+            }
+
+            int batch = packet / PACKETS_PER_BATCH;
+            if (payload != null) {
+                if (packet % PACKETS_PER_BATCH == 0) {
+                    batchAddresses[batch] = hex.getRecordAbsoluteAddressFromIndex(line) + part;
+                }
+                packetOffsets[packet] = offset;
+            }
+            int n = 0;
+            while (true) {
+                int len = hex.getRecordDataLengthFromIndex(line) / 2;
+                int take = Math.min(packetDataSize - n, len - part);
+                if (payload != null) {
+                    hex.getData(line, part, payload, offset + n, take);
+                    batchLines[batch] = line - firstLine;
+                }
+                n += take;
+                part += take;
+                if (part < len || !span || n == packetDataSize) {
+                    break;
+                }
+                long end = hex.getRecordAbsoluteAddressFromIndex(line) + len;
+                if (!isDataRecord(hex, line + 1) || hex.getRecordAbsoluteAddressFromIndex(line + 1) != end) {
+                    break;
+                }
+                part = 0;
+                line++;
+            }
+            offset += n;
+            packet++;
+        }
+        if (payload != null) {
+            packetOffsets[packet] = offset;
+        }
+        return packet;
+    }
+
+    private static boolean isDataRecord(HexUtils hex, int line) {
+        return line < hex.numOfLines() && hex.getRecordTypeFromIndex(line) == 0;
+    }
+
+    public PartialFlashImage getImage() {
+        return image;
+    }
+
+    /*
+     * @return most data bytes in a packet
+     */
+    public int getPacketDataSize() {
+        return packetDataSize;
+    }
+
+    public int getBatchCount() {
+        return batchCount;
+    }
+
+    /*
+     * @return address of the first byte of the code, or -1 if there is none
+     */
+    public long getStartAddress() {
+        return batchCount > 0 ? batchAddresses[0] : -1;
+    }
+
+    public long getBatchAddress(int batch) {
+        return batchAddresses[batch];
+    }
+
+    /*
+     * @return index of the last batch that starts at or before address, or 0
+     */
+    public int getBatchAt(long address) {
+        int batch = batchCount - 1;
+        while (batch > 0 && batchAddresses[batch] > address) {
+            batch--;
+        }
+        return Math.max(batch, 0);
+    }
+
+    /*
+     * @return data bytes in the first batches, without packet headers
+     */
+    public long getDataSize(int batches) {
+        return packetOffsets[batches * PACKETS_PER_BATCH] - packetOffsets[0];
+    }
+
+    /*
+     * @return approximate memory used by the packets, in bytes
+     */
+    public long getMemorySize() {
+        return payload.length
+                + (long) batchAddresses.length * 8
+                + (long) batchLines.length * 4
+                + (long) packetOffsets.length * 4;
+    }
+
+    /*
+     * @return progress as a percentage when a batch has been sent
+     */
+    public int getProgress(int batch) {
+        return Math.round((float) 100 * ((float) batchLines[batch] / (float) numOfLines));
+    }
+
+    /*
+     * @return length of an encoded packet, including the header
+     */
+    public int getPacketLength(int batch, int count) {
+        int packet = batch * PACKETS_PER_BATCH + count;
+        return PACKET_HEADER_SIZE + packetOffsets[packet + 1] - packetOffsets[packet];
+    }
+
+    /*
+     * Encode a packet into a new buffer
+     * @see #encodePacket
+     */
+    public byte[] getPacket(int batch, int count, int packetNum) {
+        byte[] data = new byte[getPacketLength(batch, count)];
+        encodePacket(batch, count, packetNum, data, 0);
+        return data;
+    }
+
+    /*
+     * Encode a packet
+     * The first packet of a batch carries the low 16 bits of the batch address, the
+     * second carries the high 16 bits.
+     * @param batch index of the batch
+     * @param count index of the packet in the batch
+     * @param packetNum packet number to send
+     * @param buffer to write the packet into, with room for getPacketLength() bytes
+     * @param bufferOffset where the packet starts in buffer
+     * @return number of bytes written
+     */
+    public int encodePacket(int batch, int count, int packetNum, byte[] buffer, int bufferOffset) {
+        int packet = batch * PACKETS_PER_BATCH + count;
+        int start = packetOffsets[packet];
+        int len = packetOffsets[packet + 1] - start;
+
+        int offsetToSend = 0;
+        if (count == 0) {
+            offsetToSend = (int) (batchAddresses[batch] % (256 * 256));
+        } else if (count == 1) {
+            offsetToSend = (int) (batchAddresses[batch] / (256 * 256));
+        }
+
+        HexUtils.writePacketHeader(offsetToSend, packetNum, buffer, bufferOffset);
+        System.arraycopy(payload, start, buffer, bufferOffset + PACKET_HEADER_SIZE, len);
+        return PACKET_HEADER_SIZE + len;
+    }
+}
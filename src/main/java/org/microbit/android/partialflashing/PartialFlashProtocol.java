@@ -0,0 +1,524 @@
+package org.microbit.android.partialflashing;
+
+/**
+ * The partial flashing protocol, independent of how the micro:bit is reached
+ *
+ * Reads the memory map and streams the packets of a plan over a PartialFlashTransport,
+ * keeping up to a window of batches unacknowledged. FLASH_COMMAND notifications are
+ * queued and matched to batches by packet number if the firmware reports it, else in
+ * order. On RETRANSMIT the transfer rewinds to the dropped batch.
+ *
+ * An instance runs the exchanges of one session, and keeps counters for the caller.
+ *
+ * (c) 2017 - 2021, Micro:bit Educational Foundation and contributors
+ *
+ * SPDX-License-Identifier: MIT
+ */
+
+public class PartialFlashProtocol implements PartialFlashTransport.Listener {
+    // Commands
+    public static final byte REGION_INFO_COMMAND = 0x0;
+    public static final byte FLASH_COMMAND = 0x1;
+    public static final byte END_OF_FLASH_COMMAND = 0x2;
+
+    // FLASH_COMMAND notification states
+    public static final byte PACKET_STATE_WAITING = 0;
+    public static final byte PACKET_STATE_SENT = (byte) 0xFF;
+    public static final byte PACKET_STATE_RETRANSMIT = (byte) 0xAA;
+    public static final byte PACKET_STATE_COMPLETE_FLASH = (byte) 0xCF;
+
+    // Results of flash()
+    public static final int RESULT_SUCCESS = 0;
+    public static final int RESULT_WRITE_FAILED = 1;
+    public static final int RESULT_TIMEOUT = 2;         // a batch was not acknowledged
+    public static final int RESULT_FLASH_TIMEOUT = 3;   // the whole transfer took too long
+    public static final int RESULT_DISCONNECTED = 4;
+    public static final int RESULT_ABORTED = 5;
+
+    public static final int MAX_BATCH_WINDOW = 8;
+
+    public static final long DEFAULT_WRITE_TIMEOUT = 1000;
+    public static final long DEFAULT_BATCH_TIMEOUT = 5000;
+    public static final long DEFAULT_FLASH_TIMEOUT = 60000;
+
+    // Quiet time that ends the notifications for a rewound window
+    private static final long ACK_DRAIN_QUIET = 250;
+
+    public interface ProgressListener {
+        /*
+         * Called from flash() when the percentage changes
+         */
+        void onProgress(int percent);
+    }
+
+    private final PartialFlashTransport transport;
+    private final FlashTrace trace;
+    private final MemoryMap memoryMap = new MemoryMap();
+
+    // Guards the memory map wait and the notification queue
+    private final Object lock = new Object();
+
+    // FLASH_COMMAND notifications not yet handled, oldest first
+    // Firmware that reports which packet it acknowledges sends the number after the state
+    private static final int ACK_QUEUE_SIZE = 32;
+    private static final int ACK_NO_PACKET = -1;
+    private final byte[] ackStates = new byte[ACK_QUEUE_SIZE];
+    private final int[] ackPackets = new int[ACK_QUEUE_SIZE];
+    private int ackHead = 0;
+    private int ackCount = 0;
+
+    private volatile boolean aborted = false;
+    private volatile boolean disconnected = false;
+
+    // Settings
+    private long writeTimeout = DEFAULT_WRITE_TIMEOUT;
+    private long batchTimeout = DEFAULT_BATCH_TIMEOUT;
+    private long flashTimeout = DEFAULT_FLASH_TIMEOUT;
+    private int batchWindow = 1;
+    private LatencyStats.Series[] batchLatency = new LatencyStats.Series[0];
+    private ProgressListener progressListener = null;
+
+    // Packet buffers, reused from batch to batch
+    private final PacketBufferPool packetPool = new PacketBufferPool( PartialFlashPlan.MAX_PACKET_SIZE, PartialFlashPlan.PACKETS_PER_BATCH * MAX_BATCH_WINDOW);
+
+    // Unacknowledged batches, by batch % window
+    private final byte[][][] batchPackets = new byte[ MAX_BATCH_WINDOW][ PartialFlashPlan.PACKETS_PER_BATCH][];
+    private final long[] batchStarts = new long[ MAX_BATCH_WINDOW];
+    private final int[] batchLastPackets = new int[ MAX_BATCH_WINDOW];
+
+    // Counters from the last flash()
+    private int batchesAcknowledged = 0;
+    private int nextPacketNumber = 0;
+    private int packetsSent = 0;
+    private long bytesSent = 0;
+    private int retransmits = 0;
+    private long transferTime = 0;
+
+    /*
+     * @param transport connected link. Notifications are routed to this protocol.
+     * @param trace records protocol events
+     */
+    public PartialFlashProtocol( PartialFlashTransport transport, FlashTrace trace) {
+        this.transport = transport;
+        this.trace = trace;
+        transport.setListener( this);
+    }
+
+    public PartialFlashTransport getTransport() {
+        return transport;
+    }
+
+    public MemoryMap getMemoryMap() {
+        return memoryMap;
+    }
+
+    /*
+     * @param timeout longest wait for each write to complete, in ms
+     */
+    public void setWriteTimeout( long timeout) {
+        writeTimeout = timeout;
+    }
+
+    /*
+     * @param timeout longest wait for a batch to be acknowledged, in ms
+     */
+    public void setBatchTimeout( long timeout) {
+        batchTimeout = timeout;
+    }
+
+    /*
+     * @param timeout longest transfer, in ms
+     */
+    public void setFlashTimeout( long timeout) {
+        flashTimeout = timeout;
+    }
+
+    /*
+     * @param window batches written before waiting for an acknowledgement, 1 to MAX_BATCH_WINDOW
+     */
+    public void setBatchWindow( int window) {
+        batchWindow = Math.max( 1, Math.min( MAX_BATCH_WINDOW, window));
+    }
+
+    public int getBatchWindow() {
+        return batchWindow;
+    }
+
+    /*
+     * @param series where batch round trips are recorded
+     */
+    public void setBatchLatency( LatencyStats.Series... series) {
+        batchLatency = series;
+    }
+
+    public void setProgressListener( ProgressListener listener) {
+        progressListener = listener;
+    }
+
+    /*
+     * End any wait, and fail the current exchange
+     */
+    public void abort() {
+        aborted = true;
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+    }
+
+    public boolean isAborted() {
+        return aborted;
+    }
+
+    @Override
+    public void onNotification( byte[] value) {
+        trace.event( FlashTrace.EVENT_NOTIFICATION, notificationHead( value), value.length);
+        if ( value.length == 0) {
+            return;
+        }
+        switch ( value[0]) {
+            case REGION_INFO_COMMAND: {
+                synchronized (lock) {
+                    memoryMap.add( value);
+                    lock.notifyAll();
+                }
+                break;
+            }
+            case FLASH_COMMAND: {
+                synchronized (lock) {
+                    if ( value.length > 1
+                            && value[1] != PACKET_STATE_WAITING
+                            && ackCount < ACK_QUEUE_SIZE) {
+                        int tail = ( ackHead + ackCount) % ACK_QUEUE_SIZE;
+                        ackStates[ tail] = value[1];
+                        ackPackets[ tail] = value.length > 2 ? value[2] & 0xFF : ACK_NO_PACKET;
+                        ackCount++;
+                    }
+                    lock.notifyAll();
+                }
+                break;
+            }
+        }
+    }
+
+    @Override
+    public void onDisconnected() {
+        disconnected = true;
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+    }
+
+    /*
+     * Request every region without waiting for replies
+     * The replies are collected by region ID as they arrive.
+     * @param timeout longest wait for the whole exchange, in ms
+     * @return false if a request could not be written. The map may still be incomplete.
+     */
+    public boolean readMemoryMap( long timeout) throws InterruptedException {
+        synchronized (lock) {
+            memoryMap.clear();
+        }
+        disconnected = false;
+
+        for ( int i = 0; i < MemoryMap.REGION_COUNT; i++) {
+            byte[] payload = { REGION_INFO_COMMAND, (byte) i};
+            if ( transport.write( payload) != PartialFlashTransport.STATUS_SUCCESS) {
+                return false;
+            }
+        }
+
+        // One deadline for the whole exchange
+        long start = now();
+        synchronized (lock) {
+            long remaining = timeout;
+            while ( !memoryMap.isComplete() && remaining > 0 && !aborted && !disconnected) {
+                lock.wait( remaining);
+                remaining = timeout - ( now() - start);
+            }
+        }
+        return true;
+    }
+
+    /*
+     * @return data bytes per packet, the most that both the firmware and the MTU allow
+     */
+    public int getPacketDataSize() {
+        int size = Math.min( memoryMap.getMaxPacketDataSize(),
+                transport.getMtu() - 3 - PartialFlashPlan.PACKET_HEADER_SIZE);
+        size = Math.min( size, PartialFlashPlan.MAX_PACKET_DATA_SIZE);
+        size -= size % PartialFlashPlan.PACKET_DATA_SIZE;
+        return Math.max( size, PartialFlashPlan.PACKET_DATA_SIZE);
+    }
+
+    /*
+     * Send the packets of a plan, then the end of flash command
+     * @param plan compiled for getPacketDataSize() or less
+     * @return one of the RESULT_ values
+     */
+    public int flash( PartialFlashPlan plan) throws InterruptedException {
+        return flash( plan, 0, 0);
+    }
+
+    /*
+     * Send the packets of a plan from a batch, then the end of flash command
+     * Used to resume a transfer on a new connection. Batches before firstBatch are
+     * counted as acknowledged.
+     * @param plan compiled for getPacketDataSize() or less
+     * @param firstBatch batch to send first, up to plan.getBatchCount()
+     * @param firstPacketNum packet number to send first, usually getNextPacketNumber()
+     *                       from the transfer being resumed
+     * @return one of the RESULT_ values
+     */
+    public int flash( PartialFlashPlan plan, int firstBatch, int firstPacketNum) throws InterruptedException {
+        int window = batchWindow;
+        synchronized (lock) {
+            ackCount = 0;
+        }
+        disconnected = false;
+        batchesAcknowledged = firstBatch;
+        nextPacketNumber = firstPacketNum & 0xFF;
+        packetsSent = 0;
+        bytesSent = 0;
+        retransmits = 0;
+        transferTime = 0;
+
+        int packetNum = firstPacketNum;
+        int sent = firstBatch;      // batches written
+        int acked = firstBatch;     // batches acknowledged, in order
+        int progress = -1;
+        long startTime = now();
+        try {
+            while ( acked < plan.getBatchCount()) {
+                // Timeout if total is too long
+                if ( now() - startTime > flashTimeout) {
+                    trace.event( FlashTrace.EVENT_TIMEOUT, acked, (int) ( now() - startTime));
+                    return RESULT_FLASH_TIMEOUT;
+                }
+
+                // Keep up to window batches unacknowledged
+                while ( sent < plan.getBatchCount() && sent - acked < window) {
+                    int slot = sent % window;
+                    batchStarts[ slot] = now();
+                    for ( int count = 0; count < PartialFlashPlan.PACKETS_PER_BATCH; count++) {
+                        trace.event( FlashTrace.EVENT_PACKET, packetNum, sent);
+
+                        // encodePacket() builds a PF command block with the data
+                        byte[] chunk = packetPool.obtain( plan.getPacketLength( sent, count));
+                        plan.encodePacket( sent, count, packetNum, chunk, 0);
+                        batchPackets[ slot][ count] = chunk;
+
+                        // Waits for the previous write to complete
+                        if ( transport.write( chunk) != PartialFlashTransport.STATUS_SUCCESS) {
+                            return disconnected ? RESULT_DISCONNECTED : RESULT_WRITE_FAILED;
+                        }
+                        packetsSent++;
+                        bytesSent += chunk.length;
+
+                        // Always increment packet #
+                        packetNum = packetNum + 1;
+
+                        // Including the last packet of the batch, so no failure goes unseen
+                        long wait = now();
+                        int status = transport.awaitWrite( writeTimeout);
+                        trace.event( FlashTrace.EVENT_WRITE_WAIT, status, (int) ( now() - wait));
+                        // Timed out, cancelled or a GATT error
+                        if ( status != PartialFlashTransport.STATUS_SUCCESS) {
+                            return disconnected ? RESULT_DISCONNECTED : RESULT_WRITE_FAILED;
+                        }
+                    }
+                    batchLastPackets[ slot] = ( packetNum - 1) & 0xFF;
+                    sent++;
+                }
+
+                // Report progress while waiting
+                if ( plan.getProgress( acked) != progress) {
+                    progress = plan.getProgress( acked);
+                    if ( progressListener != null) {
+                        progressListener.onProgress( progress);
+                    }
+                }
+
+                long timeout = now();
+                byte state;
+                int ackPacket;
+                synchronized (lock) {
+                    while ( ackCount == 0 && !aborted && !disconnected) {
+                        long remaining = batchTimeout - ( now() - timeout);
+                        if ( remaining <= 0) {
+                            trace.event( FlashTrace.EVENT_TIMEOUT, acked, (int) ( now() - timeout));
+                            return RESULT_TIMEOUT;
+                        }
+                        lock.wait( remaining);
+                    }
+                    if ( aborted) {
+                        return RESULT_ABORTED;
+                    }
+                    if ( ackCount == 0) {
+                        return RESULT_DISCONNECTED;
+                    }
+
+                    state = ackStates[ ackHead];
+                    ackPacket = ackPackets[ ackHead];
+                    ackHead = ( ackHead + 1) % ACK_QUEUE_SIZE;
+                    ackCount--;
+                }
+
+                // Match by packet number if the firmware reports it, else the oldest batch
+                int batch = acked;
+                if ( ackPacket != ACK_NO_PACKET) {
+                    batch = -1;
+                    for ( int b = acked; b < sent; b++) {
+                        if ( batchLastPackets[ b % window] == ackPacket) {
+                            batch = b;
+                            break;
+                        }
+                    }
+                    if ( batch < 0) {
+                        // For a batch that has been rewound
+                        continue;
+                    }
+                }
+                trace.event( FlashTrace.EVENT_BATCH, batch, state & 0xFF);
+
+                if ( state == PACKET_STATE_RETRANSMIT) {
+                    // The micro:bit dropped this batch, and drops any written after it.
+                    // Let their notifications arrive, then rewind to the batch.
+                    retransmits++;
+                    if ( sent - batch > 1) {
+                        drainAcks( batchTimeout);
+                    } else {
+                        synchronized (lock) {
+                            ackCount = 0;
+                        }
+                    }
+                    recycleBatches( acked, sent, window);
+                    acked = batch;
+                    sent = batch;
+                } else {
+                    // Acknowledgements are in order, so earlier batches were received too
+                    long rtt = now() - batchStarts[ batch % window];
+                    for ( LatencyStats.Series s : batchLatency) {
+                        s.add( rtt);
+                    }
+                    nextPacketNumber = ( batchLastPackets[ batch % window] + 1) & 0xFF;
+                    recycleBatches( acked, batch + 1, window);
+                    acked = batch + 1;
+                }
+                batchesAcknowledged = acked;
+            }
+
+            // Write End of Flash packet
+            // Queued after the last packet write completes
+            byte[] endOfFlashPacket = { END_OF_FLASH_COMMAND};
+            if ( transport.write( endOfFlashPacket) != PartialFlashTransport.STATUS_SUCCESS) {
+                return disconnected ? RESULT_DISCONNECTED : RESULT_WRITE_FAILED;
+            }
+            if ( transport.awaitWrite( writeTimeout) != PartialFlashTransport.STATUS_SUCCESS) {
+                return disconnected ? RESULT_DISCONNECTED : RESULT_WRITE_FAILED;
+            }
+
+            if ( progressListener != null) {
+                progressListener.onProgress( 100);
+            }
+            return RESULT_SUCCESS;
+        } finally {
+            recycleBatches( acked, sent, window);
+            transferTime = now() - startTime;
+        }
+    }
+
+    /*
+     * @return batches acknowledged by the last flash(), including any it was told to skip
+     */
+    public int getBatchesAcknowledged() {
+        return batchesAcknowledged;
+    }
+
+    /*
+     * @return packet number after the last batch acknowledged by the last flash()
+     */
+    public int getNextPacketNumber() {
+        return nextPacketNumber;
+    }
+
+    /*
+     * @return packets written by the last flash(), including retransmissions
+     */
+    public int getPacketsSent() {
+        return packetsSent;
+    }
+
+    /*
+     * @return bytes written by the last flash(), including headers and retransmissions
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /*
+     * @return RETRANSMIT notifications handled by the last flash()
+     */
+    public int getRetransmits() {
+        return retransmits;
+    }
+
+    /*
+     * @return duration of the last flash(), in ms
+     */
+    public long getTransferTime() {
+        return transferTime;
+    }
+
+    /*
+     * Discard FLASH_COMMAND notifications until none arrive for ACK_DRAIN_QUIET ms
+     * @param limit longest wait, in ms
+     */
+    private void drainAcks( long limit) throws InterruptedException {
+        long start = now();
+        synchronized (lock) {
+            int seen = -1;
+            long changed = start;
+            while ( !aborted && !disconnected) {
+                long time = now();
+                if ( ackCount != seen) {
+                    seen = ackCount;
+                    changed = time;
+                }
+                long remaining = Math.min( ACK_DRAIN_QUIET - ( time - changed), limit - ( time - start));
+                if ( remaining <= 0) {
+                    break;
+                }
+                lock.wait( remaining);
+            }
+            ackCount = 0;
+        }
+    }
+
+    /*
+     * Return the packet buffers of batches [from, to) to the pool
+     */
+    private void recycleBatches( int from, int to, int window) {
+        for ( int b = from; b < to; b++) {
+            byte[][] packets = batchPackets[ b % window];
+            for ( int count = 0; count < PartialFlashPlan.PACKETS_PER_BATCH; count++) {
+                packetPool.recycle( packets[ count]);
+                packets[ count] = null;
+            }
+        }
+    }
+
+    /*
+     * First 4 bytes of a notification as an int, for tracing
+     */
+    private static int notificationHead( byte[] bytes) {
+        int head = 0;
+        for ( int i = 0; i < 4; i++) {
+            head = ( head << 8) | ( i < bytes.length ? bytes[i] & 0xFF : 0);
+        }
+        return head;
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000L;
+    }
+}
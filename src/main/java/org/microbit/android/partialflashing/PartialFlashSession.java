@@ -0,0 +1,398 @@
+package org.microbit.android.partialflashing;
+
+/**
+ * One partial flash of a prepared image to one micro:bit
+ *
+ * Runs the steps after the connection is made: read the memory map, check that the DAL
+ * hash and code start match the image, choose the packet size and window the firmware
+ * and link allow, then transfer the packets. The time spent in each phase is recorded.
+ *
+ * If the link drops or stalls during the transfer, the session reconnects with backoff,
+ * checks the memory map again and resumes from the last batch the micro:bit
+ * acknowledged, rewound to the start of its flash page.
+ *
+ * PartialFlashingBaseService runs a session over its BLE connection. run() also makes
+ * the connection, for transports that need no other setup, such as the simulated
+ * peripheral the benchmarks use.
+ *
+ * (c) 2017 - 2021, Micro:bit Educational Foundation and contributors
+ *
+ * SPDX-License-Identifier: MIT
+ */
+
+public class PartialFlashSession {
+    // Results, as PartialFlashingBaseService PF_ values
+    public static final int RESULT_SUCCESS = 0;
+    public static final int RESULT_ATTEMPT_DFU = 1;     // nothing written, use full DFU
+    public static final int RESULT_FAILED = 2;          // the transfer started but did not finish
+
+    // Phases
+    public static final int PHASE_CONNECT = 0;          // connect and enable notifications
+    public static final int PHASE_MEMORY_MAP = 1;       // read and check the memory map
+    public static final int PHASE_TRANSFER = 2;         // packets and end of flash
+    public static final int PHASE_COUNT = 3;
+
+    public static final long DEFAULT_MEMORY_MAP_TIMEOUT = 2000;
+    public static final int DEFAULT_RESUME_ATTEMPTS = 3;
+    public static final long DEFAULT_RESUME_DELAY = 500;    // before the first reconnect, doubled for each after
+    private static final long MAX_RESUME_DELAY = 4000;
+
+    private final PartialFlashTransport transport;
+    private final PartialFlashProtocol protocol;
+    private final PartialFlashImage image;
+
+    private Listener listener = null;
+    private int batchWindow = 0;
+    private long writeTimeout = PartialFlashProtocol.DEFAULT_WRITE_TIMEOUT;
+    private long memoryMapTimeout = DEFAULT_MEMORY_MAP_TIMEOUT;
+    private boolean adaptiveTimeouts = true;
+    private boolean notificationsAssumed = false;
+    private LatencyStats.Series[] batchLatency = new LatencyStats.Series[0];
+    private int resumeAttempts = DEFAULT_RESUME_ATTEMPTS;
+    private long resumeDelay = DEFAULT_RESUME_DELAY;
+    private volatile boolean aborted = false;
+
+    private final long[] phaseTimes = new long[ PHASE_COUNT];
+    private PartialFlashPlan plan = null;
+    private String failure = null;
+    private long codeEnd = -1;
+    private ResumePoint resumePoint = null;
+    private int resumes = 0;
+    private int retransmits = 0;
+
+    public interface Listener {
+        /*
+         * The checks passed and the first packet is about to be sent
+         */
+        void onTransferStart( PartialFlashPlan plan);
+
+        /*
+         * @param percent 0 to 100
+         */
+        void onProgress( int percent);
+    }
+
+    /*
+     * Where an interrupted transfer continues
+     */
+    public static class ResumePoint {
+        public final int batch;             // first batch not acknowledged
+        public final long address;          // of that batch, or -1 if every batch was
+        public final int packetNum;         // after the last packet acknowledged
+
+        ResumePoint( PartialFlashPlan plan, PartialFlashProtocol protocol) {
+            batch = protocol.getBatchesAcknowledged();
+            address = batch < plan.getBatchCount() ? plan.getBatchAddress( batch) : -1;
+            packetNum = protocol.getNextPacketNumber();
+        }
+    }
+
+    /*
+     * @param protocol over the link to the micro:bit
+     * @param image located for the board being flashed
+     */
+    public PartialFlashSession( PartialFlashProtocol protocol, PartialFlashImage image) {
+        this.protocol = protocol;
+        this.transport = protocol.getTransport();
+        this.image = image;
+    }
+
+    public PartialFlashProtocol getProtocol() {
+        return protocol;
+    }
+
+    public PartialFlashImage getImage() {
+        return image;
+    }
+
+    public void setListener( Listener listener) {
+        this.listener = listener;
+    }
+
+    /*
+     * @param window batches in flight, or 0 for what the firmware advertises
+     */
+    public void setBatchWindow( int window) {
+        batchWindow = window;
+    }
+
+    /*
+     * @param timeout longest wait for each write to complete, in ms
+     */
+    public void setWriteTimeout( long timeout) {
+        writeTimeout = timeout;
+    }
+
+    /*
+     * @param timeout longest wait for the memory map, in ms
+     */
+    public void setMemoryMapTimeout( long timeout) {
+        memoryMapTimeout = timeout;
+    }
+
+    /*
+     * @param adaptive derive batch and flash timeouts from the batch latency series
+     */
+    public void setAdaptiveTimeouts( boolean adaptive) {
+        adaptiveTimeouts = adaptive;
+    }
+
+    /*
+     * @param series where batch round trips are recorded, most specific first
+     */
+    public void setBatchLatency( LatencyStats.Series... series) {
+        batchLatency = series;
+    }
+
+    /*
+     * @param assumed notifications were not enabled on this connection, because an
+     *                earlier flash left them enabled. If the memory map does not arrive,
+     *                they are enabled and it is read again.
+     */
+    public void setNotificationsAssumed( boolean assumed) {
+        notificationsAssumed = assumed;
+    }
+
+    /*
+     * @param attempts most reconnections to resume an interrupted transfer, or 0 not to resume
+     */
+    public void setResumeAttempts( int attempts) {
+        resumeAttempts = attempts;
+    }
+
+    /*
+     * @param delay wait before the first reconnection, in ms. Doubled for each one after.
+     */
+    public void setResumeDelay( long delay) {
+        resumeDelay = delay;
+    }
+
+    public void abort() {
+        aborted = true;
+        protocol.abort();
+    }
+
+    /*
+     * Connect, enable notifications, and flash()
+     * @return one of the RESULT_ values
+     */
+    public int run() throws InterruptedException {
+        long start = now();
+        boolean ready = transport.connect() && transport.enableNotifications();
+        phaseTimes[ PHASE_CONNECT] = now() - start;
+        if ( !ready) {
+            failure = "Failed to connect";
+            return RESULT_ATTEMPT_DFU;
+        }
+        return flash();
+    }
+
+    /*
+     * Flash over a connected transport with notifications enabled
+     * @return one of the RESULT_ values
+     */
+    public int flash() throws InterruptedException {
+        failure = null;
+        plan = null;
+        codeEnd = -1;
+        resumePoint = null;
+        resumes = 0;
+        retransmits = 0;
+        if ( !image.hasPartialFlashData()) {
+            failure = "No partial flash data";
+            return RESULT_ATTEMPT_DFU;
+        }
+
+        long start = now();
+        int result = checkMemoryMap();
+        phaseTimes[ PHASE_MEMORY_MAP] = now() - start;
+        if ( result != RESULT_SUCCESS) {
+            return result;
+        }
+
+        protocol.setBatchWindow( batchWindow > 0 ? batchWindow : protocol.getMemoryMap().getBatchWindow());
+        protocol.setWriteTimeout( writeTimeout);
+        protocol.setBatchLatency( batchLatency);
+        if ( adaptiveTimeouts) {
+            // A batch may take several times its usual round trip when the radio is busy
+            protocol.setBatchTimeout( LatencyStats.timeout( 99, 4.0, 250, 1000, 10000,
+                    PartialFlashProtocol.DEFAULT_BATCH_TIMEOUT, batchLatency));
+            protocol.setFlashTimeout( LatencyStats.timeout( 90, 3.0 * plan.getBatchCount(), 10000, 20000, 300000,
+                    PartialFlashProtocol.DEFAULT_FLASH_TIMEOUT, batchLatency));
+        } else {
+            protocol.setBatchTimeout( PartialFlashProtocol.DEFAULT_BATCH_TIMEOUT);
+            protocol.setFlashTimeout( PartialFlashProtocol.DEFAULT_FLASH_TIMEOUT);
+        }
+        final Listener l = listener;
+        protocol.setProgressListener( l == null ? null : new PartialFlashProtocol.ProgressListener() {
+            @Override
+            public void onProgress( int percent) {
+                l.onProgress( percent);
+            }
+        });
+        if ( l != null) {
+            l.onTransferStart( plan);
+        }
+
+        start = now();
+        int flashResult = protocol.flash( plan);
+        retransmits += protocol.getRetransmits();
+        int attempts = 0;
+        long delay = resumeDelay;
+        while ( isResumable( flashResult) && attempts < resumeAttempts && !aborted) {
+            resumePoint = new ResumePoint( plan, protocol);
+
+            boolean ready = false;
+            while ( !ready && attempts < resumeAttempts && !aborted) {
+                Thread.sleep( delay);
+                delay = Math.min( delay * 2, MAX_RESUME_DELAY);
+                attempts++;
+                transport.disconnect();
+                ready = transport.connect() && transport.enableNotifications();
+            }
+            if ( !ready) {
+                break;
+            }
+
+            // The micro:bit must still be running the same DAL, with the same code region
+            notificationsAssumed = false;
+            if ( checkMemoryMap() != RESULT_SUCCESS) {
+                failure = "Resume: " + failure;
+                phaseTimes[ PHASE_TRANSFER] = now() - start;
+                return RESULT_FAILED;
+            }
+
+            // Batches in flight may have been written without being acknowledged. Rewrite
+            // their page from its start, as the firmware erases a page when the batch at
+            // its start is written.
+            int batch = plan.getBatchCount();
+            if ( resumePoint.address >= 0) {
+                batch = plan.getBatchAt( resumePoint.address - resumePoint.address % image.getPageSize());
+            }
+            resumes++;
+            flashResult = protocol.flash( plan, batch, resumePoint.packetNum);
+            retransmits += protocol.getRetransmits();
+        }
+        phaseTimes[ PHASE_TRANSFER] = now() - start;
+        if ( flashResult != PartialFlashProtocol.RESULT_SUCCESS) {
+            failure = "Flash result " + flashResult + " after " + protocol.getBatchesAcknowledged() + " batches";
+            if ( resumes > 0) {
+                failure += " and " + resumes + " resumes";
+            }
+            return RESULT_FAILED;
+        }
+        return RESULT_SUCCESS;
+    }
+
+    // Lost links and stalled batches are resumed. A write that fails on a link that is
+    // still up is a real error, and is not. Nor are aborts and overall timeouts.
+    private static boolean isResumable( int flashResult) {
+        return flashResult == PartialFlashProtocol.RESULT_DISCONNECTED
+                || flashResult == PartialFlashProtocol.RESULT_TIMEOUT;
+    }
+
+    // Read the memory map and compile the plan if it matches the image
+    private int checkMemoryMap() throws InterruptedException {
+        MemoryMap memoryMap = protocol.getMemoryMap();
+        if ( !protocol.readMemoryMap( memoryMapTimeout)) {
+            failure = "Failed to read memory map";
+            return RESULT_ATTEMPT_DFU;
+        }
+        if ( notificationsAssumed && !memoryMap.isComplete()) {
+            // Notifications left enabled by an earlier flash have been reset
+            notificationsAssumed = false;
+            if ( !transport.enableNotifications() || !protocol.readMemoryMap( memoryMapTimeout)) {
+                failure = "Failed to read memory map";
+                return RESULT_ATTEMPT_DFU;
+            }
+        }
+
+        MemoryMap.Region code = memoryMap.get( MemoryMap.REGION_MAKECODE);
+        if ( code == null || code.startAddress == 0 || code.endAddress <= code.startAddress) {
+            failure = "Failed to read memory map code address";
+            return RESULT_ATTEMPT_DFU;
+        }
+        if ( codeEnd >= 0 && code.endAddress != codeEnd) {
+            failure = "Code end address changed";
+            return RESULT_ATTEMPT_DFU;
+        }
+        codeEnd = code.endAddress;
+
+        // Compare DAL hash
+        MemoryMap.Region dal = memoryMap.get( MemoryMap.REGION_DAL);
+        String dalHash = dal != null ? dal.hash : null;
+        if ( !image.getFileHash().equals( dalHash)) {
+            failure = "Hash " + image.getFileHash() + " != " + dalHash;
+            return RESULT_ATTEMPT_DFU;
+        }
+
+        // Compiled while connecting, for the usual packet sizes
+        plan = image.getPlan( protocol.getPacketDataSize());
+        if ( code.startAddress != plan.getStartAddress()) {
+            failure = "Code start address doesn't match";
+            return RESULT_ATTEMPT_DFU;
+        }
+
+        // TODO - check size of code in file matches micro:bit
+        return RESULT_SUCCESS;
+    }
+
+    /*
+     * @return the plan being sent, or null before the memory map checks pass
+     */
+    public PartialFlashPlan getPlan() {
+        return plan;
+    }
+
+    /*
+     * @return why the last run() or flash() did not succeed, or null
+     */
+    public String getFailure() {
+        return failure;
+    }
+
+    /*
+     * @return where the last interrupted transfer was resumed from, or null
+     */
+    public ResumePoint getResumePoint() {
+        return resumePoint;
+    }
+
+    /*
+     * @return times the last flash() resumed the transfer
+     */
+    public int getResumeCount() {
+        return resumes;
+    }
+
+    /*
+     * @return RETRANSMIT notifications handled by the last flash(), over every resume
+     */
+    public int getRetransmits() {
+        return retransmits;
+    }
+
+    /*
+     * @param phase one of the PHASE_ values
+     * @return time spent in the phase by the last run() or flash(), in ms
+     *         The transfer includes any reconnections to resume it.
+     */
+    public long getPhaseTime( int phase) {
+        return phaseTimes[ phase];
+    }
+
+    /*
+     * @return data bytes transferred per second by the last flash(), or 0
+     */
+    public double getThroughput() {
+        long ms = phaseTimes[ PHASE_TRANSFER];
+        if ( plan == null || ms <= 0 || protocol.getBatchesAcknowledged() == 0) {
+            return 0;
+        }
+        return plan.getDataSize( protocol.getBatchesAcknowledged()) * 1000.0 / ms;
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+}
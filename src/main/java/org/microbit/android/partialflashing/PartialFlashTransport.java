@@ -0,0 +1,72 @@
+package org.microbit.android.partialflashing;
+
+/**
+ * The link to a micro:bit partial flashing service
+ *
+ * PartialFlashProtocol runs the memory map exchange and the packet transfer over this
+ * interface, so the same protocol code drives a BLE connection or a simulated
+ * peripheral. Writes go to the partial flashing characteristic without response, and
+ * its notifications are passed to the listener.
+ *
+ * (c) 2017 - 2021, Micro:bit Educational Foundation and contributors
+ *
+ * SPDX-License-Identifier: MIT
+ */
+
+public interface PartialFlashTransport {
+    int STATUS_SUCCESS = GattOperationQueue.STATUS_SUCCESS;
+    int STATUS_TIMEOUT = GattOperationQueue.STATUS_TIMEOUT;
+    int STATUS_CANCELLED = GattOperationQueue.STATUS_CANCELLED;
+
+    // Default ATT MTU, leaving 20 bytes per write
+    int DEFAULT_MTU = 23;
+
+    interface Listener {
+        /*
+         * A notification from the partial flashing characteristic
+         * Called on a transport thread.
+         */
+        void onNotification(byte[] value);
+
+        /*
+         * The link was lost
+         */
+        void onDisconnected();
+    }
+
+    void setListener(Listener listener);
+
+    /*
+     * Connect and discover the partial flashing service
+     * @return true when ready for enableNotifications() and write()
+     */
+    boolean connect() throws InterruptedException;
+
+    /*
+     * Enable notifications from the partial flashing characteristic
+     * @return true if enabled
+     */
+    boolean enableNotifications() throws InterruptedException;
+
+    /*
+     * Write to the partial flashing characteristic without response
+     * Waits for the previous write to complete first.
+     * @param data the whole array is written. Not changed until the write completes.
+     * @return STATUS_SUCCESS if the write was started, else an error
+     */
+    int write(byte[] data) throws InterruptedException;
+
+    /*
+     * Wait for the last write to complete
+     * @param timeout longest wait, in ms
+     * @return STATUS_SUCCESS, an error, or STATUS_TIMEOUT
+     */
+    int awaitWrite(long timeout) throws InterruptedException;
+
+    /*
+     * @return ATT MTU of the link
+     */
+    int getMtu();
+
+    void disconnect();
+}
@@ -26,11 +26,12 @@ import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
 import java.io.IOException;
 import java.lang.reflect.Method;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.util.Arrays;
 import java.util.UUID;
-import java.util.zip.CRC32;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * A class to communicate with and flash the micro:bit without having to transfer the entire HEX file
@@ -67,15 +68,43 @@ public abstract class PartialFlashingBaseService extends IntentService {
     public static final String EXTRA_ACTION = "org.microbit.android.partialflashing.extra.EXTRA_ACTION";
     public static final int ACTION_ABORT = 0;
     public static final String EXTRA_DATA = "org.microbit.android.partialflashing.extra.EXTRA_DATA";
+    public static final String EXTRA_TRACE = "org.microbit.android.partialflashing.extra.EXTRA_TRACE";
+    // Link used for the transfer, with BROADCAST_COMPLETE and BROADCAST_PF_FAILED. LinkController.UNKNOWN if not reported
+    public static final String EXTRA_CONNECTION_INTERVAL = "org.microbit.android.partialflashing.extra.EXTRA_CONNECTION_INTERVAL";   // units of 1.25ms
+    public static final String EXTRA_TX_PHY = "org.microbit.android.partialflashing.extra.EXTRA_TX_PHY";
+    public static final String EXTRA_RX_PHY = "org.microbit.android.partialflashing.extra.EXTRA_RX_PHY";
     public static final int ERROR_CONNECT = 1;
     public static final int ERROR_RECONNECT = 2;
     public static final int ERROR_DFU_MODE = 3;
     public static final int ERROR_BONDED = 4;
     public static final int ERROR_BROKEN = 5;
 
-    private boolean abortReceived = false;
-    private Boolean working = false;
-    private boolean wasNotBonded = false;
+    // Written by the broadcast receiver and GATT callbacks, read by the worker thread
+    private volatile boolean abortReceived = false;
+    private volatile boolean working = false;
+    private volatile boolean wasNotBonded = false;
+
+    // Locates the code and compiles packets while connecting
+    private ExecutorService prepareExecutor;
+
+    // What was learnt about each device on earlier flashes
+    private DeviceProfileStore profileStore = null;
+    private DeviceProfileStore.Profile profile = null;
+    private boolean notificationsAssumed = false;
+
+    // Observed latencies for this device and phone model, used to set timeouts
+    private LatencyStats.Series[] connectLatency = new LatencyStats.Series[0];
+    private LatencyStats.Series[] batchLatency = new LatencyStats.Series[0];
+
+    // Connection priority and PHY for the transfer
+    private final LinkController link = new LinkController();
+
+    // Recent BLE events, formatted only when flashing fails or DEBUG is on
+    private final FlashTrace trace = new FlashTrace();
+
+    // The session's protocol, over the BLE link. Created for each flash
+    private volatile GattTransport transport = null;
+    private volatile PartialFlashProtocol protocol = null;
 
     protected abstract Class<? extends Activity> getNotificationTarget();
 
@@ -99,6 +128,11 @@ public abstract class PartialFlashingBaseService extends IntentService {
                         synchronized (lock) {
                             lock.notifyAll();
                         }
+                        gattQueue.cancel();
+                        PartialFlashProtocol p = protocol;
+                        if ( p != null) {
+                            p.abort();
+                        }
                         break;
                     default:
                         break;
@@ -107,13 +141,15 @@ public abstract class PartialFlashingBaseService extends IntentService {
                 if (!working) {
                     return;
                 }
-                if (mBluetoothGatt == null) {
+                // Read once, the worker thread may close the connection at any time
+                final BluetoothGatt gatt = mBluetoothGatt;
+                if (gatt == null) {
                     return;
                 }
-                if (mBluetoothGatt.getDevice() == null) {
+                if (gatt.getDevice() == null) {
                     return;
                 }
-                if (mBluetoothGatt.getDevice().getAddress() == null) {
+                if (gatt.getDevice().getAddress() == null) {
                     return;
                 }
 
@@ -131,7 +167,7 @@ public abstract class PartialFlashingBaseService extends IntentService {
                 final int prevState = intent.getIntExtra(BluetoothDevice.EXTRA_PREVIOUS_BOND_STATE, BluetoothDevice.ERROR);
                 logi("bondStateReceiver -" + " address = " + address + " state = " + state + " prevState = " + prevState);
                 // Check the changed device is the one we are trying to pair
-                if (!address.equals(mBluetoothGatt.getDevice().getAddress())) {
+                if (!address.equals(gatt.getDevice().getAddress())) {
                     return;
                 }
                 if (state != BluetoothDevice.BOND_BONDED && prevState != BluetoothDevice.BOND_BONDED) {
@@ -161,6 +197,7 @@ public abstract class PartialFlashingBaseService extends IntentService {
         super.onCreate();
 
         DEBUG = isDebug();
+        trace.setEnabled( isTraceEnabled());
 
         logi("onCreate");
 
@@ -176,6 +213,12 @@ public abstract class PartialFlashingBaseService extends IntentService {
         final LocalBroadcastManager manager = LocalBroadcastManager.getInstance(this);
         manager.registerReceiver(broadcastReceiver, intentFilter);
 
+        prepareExecutor = Executors.newSingleThreadExecutor();
+
+        if ( isDeviceProfileEnabled()) {
+            profileStore = new DeviceProfileStore(this);
+        }
+
         initialize();
     }
 
@@ -185,6 +228,7 @@ public abstract class PartialFlashingBaseService extends IntentService {
         logi("onDestroy");
         final LocalBroadcastManager manager = LocalBroadcastManager.getInstance(this);
         manager.unregisterReceiver(broadcastReceiver);
+        prepareExecutor.shutdownNow();
     }
 
     private void sendProgressBroadcast(final int progress) {
@@ -203,9 +247,16 @@ public abstract class PartialFlashingBaseService extends IntentService {
     private void sendProgressBroadcastComplete() {
         logi("Sending progress broadcast complete");
         final Intent broadcast = new Intent(BROADCAST_COMPLETE);
+        putLinkExtras(broadcast);
         LocalBroadcastManager.getInstance(this).sendBroadcast(broadcast);
     }
 
+    private void putLinkExtras(Intent broadcast) {
+        broadcast.putExtra(EXTRA_CONNECTION_INTERVAL, link.getInterval());
+        broadcast.putExtra(EXTRA_TX_PHY, link.getTxPhy());
+        broadcast.putExtra(EXTRA_RX_PHY, link.getRxPhy());
+    }
+
     @Override
     protected void onHandleIntent(@Nullable Intent intent) {
         logi("onHandleIntent");
@@ -215,7 +266,7 @@ public abstract class PartialFlashingBaseService extends IntentService {
         final int hardwareType = intent.getIntExtra("hardwareType", 1);
         final boolean pf = intent.getBooleanExtra("pf", true);
 
-        partialFlash(filePath, deviceAddress, pf);
+        partialFlash(filePath, deviceAddress, hardwareType, pf);
 
         checkAbort();
         logi("onHandleIntent END");
@@ -247,15 +298,68 @@ public abstract class PartialFlashingBaseService extends IntentService {
         return false;
     }
 
+    /*
+     * Record BLE events in a ring buffer, reported with BROADCAST_PF_FAILED
+     * Recording does not build strings, so can be left on in release builds
+     */
+    protected boolean isTraceEnabled() {
+        return true;
+    }
+
+    /*
+     * Remember board type, descriptor state and memory map of each device between flashes
+     * Used to skip handshake steps on repeat flashes of the same micro:bit
+     */
+    protected boolean isDeviceProfileEnabled() {
+        return true;
+    }
+
+    /*
+     * Derive connect and batch timeouts from latencies seen on earlier flashes
+     * Latencies are recorded either way, and can be read with LatencyStats.getInstance()
+     */
+    protected boolean isAdaptiveTimeoutEnabled() {
+        return true;
+    }
+
+    /*
+     * Ask for high connection priority and the 2M PHY while sending packets
+     * Balanced priority is restored when the transfer ends.
+     */
+    protected boolean isHighPriorityTransferEnabled() {
+        return true;
+    }
+
+    /*
+     * Batches written before waiting for an acknowledgement, up to 8
+     * 0 uses the window advertised by the firmware, or 1 if none is. 1 waits for each
+     * batch, which all firmware supports. Larger windows need firmware that keeps
+     * receiving while it writes flash.
+     */
+    protected int getBatchWindow() {
+        return 0;
+    }
+
+    /*
+     * Reconnections to resume a transfer after the link drops or stalls, or 0 not to resume
+     * The transfer continues from the last batch the micro:bit acknowledged, once the
+     * memory map shows the same DAL and code region.
+     */
+    protected int getResumeAttempts() {
+        return PartialFlashSession.DEFAULT_RESUME_ATTEMPTS;
+    }
+
     // ================================================================
     // PARTIAL FLASH
 
     public static final UUID PARTIAL_FLASH_CHARACTERISTIC = UUID.fromString("e97d3b10-251d-470a-a062-fa1922dfa9a8");
     public static final UUID PARTIAL_FLASHING_SERVICE = UUID.fromString("e97dd91d-251d-470a-a062-fa1922dfa9a8");
-    public static final String PXT_MAGIC = "708E3B92C615A841C49866C975EE5197";
+    public static final String PXT_MAGIC = PartialFlashImage.PXT_MAGIC;
     public static final String UPY_MAGIC = ".*FE307F59.{16}9DD7B1C1.*";
-    public static final String UPY_MAGIC1 = "FE307F59";
-    public static final String UPY_MAGIC2 = "9DD7B1C1";
+    public static final String UPY_MAGIC1 = PartialFlashImage.UPY_MAGIC1;
+    public static final String UPY_MAGIC2 = PartialFlashImage.UPY_MAGIC2;
+    public final static int PYTHON_HEADER_SIZE = PartialFlashImage.PYTHON_HEADER_SIZE;
+    public final static int PYTHON_REGION_SIZE = PartialFlashImage.PYTHON_REGION_SIZE;
 
     private static final UUID NORDIC_DFU_SERVICE = UUID.fromString("00001530-1212-EFDE-1523-785FEABCD123");
     private static final UUID MICROBIT_DFU_SERVICE = UUID.fromString("e95d93b0-251d-470a-a062-fa1922dfa9a8");
@@ -265,34 +369,50 @@ public abstract class PartialFlashingBaseService extends IntentService {
     // values for writeCharacteristic
     private static final int WITH_RESPONSE = BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT;
     private static final int NO_RESPONSE = BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE;
-    private final static int BLE_PENDING = -1;
-    private final static int BLE_ERROR_UNKNOWN = Integer.MAX_VALUE;
+    private final static int BLE_ERROR_UNKNOWN = GattCharacteristicWriter.BLE_ERROR_UNKNOWN;
+    private final static int BLE_TIMEOUT = GattOperationQueue.STATUS_TIMEOUT;
 
-    private BluetoothAdapter mBluetoothAdapter;
-    private BluetoothGatt mBluetoothGatt = null;
-    private int mConnectionState = STATE_DISCONNECTED;
-    private boolean mWaitingForServices = false;
-    private boolean mWaitingForBonding = false;
+    // Longest wait for onCharacteristicWrite
+    private static final long WRITE_TIMEOUT = 1000;
+    // Longest wait for other GATT operations
+    private static final long OPERATION_TIMEOUT = 1000;
 
-    private boolean descriptorWriteSuccess = false;
-    BluetoothGattDescriptor descriptorRead = null;
-    boolean descriptorReadSuccess = false;
-    byte[] descriptorValue = null;
+    // ATT MTU. The default leaves 20 bytes per write, enough for a 16 byte packet
+    private static final int DEFAULT_MTU = 23;
+    private static final int REQUESTED_MTU = PartialFlashPlan.MAX_PACKET_SIZE + 3;
 
-    private int onWriteCharacteristicStatus = BLE_PENDING;
+    private BluetoothAdapter mBluetoothAdapter;
+    private volatile BluetoothGatt mBluetoothGatt = null;
+    private volatile int mConnectionState = STATE_DISCONNECTED;
+    private volatile boolean mWaitingForServices = false;
+    private volatile boolean mWaitingForBonding = false;
+    private volatile boolean mDiscoverPending = false;  // bonded - discover after Service Changed
+    private volatile long mConnectedTime = 0;
+    private volatile boolean mServiceChanged = false;
+    private volatile boolean mLinkConnected = false;
+    private volatile int mMtu = DEFAULT_MTU;
+
+    // Ceilings for handshake steps that normally end with a callback
+    private static final long SERVICE_CHANGED_TIMEOUT = 1600;
+    private static final long DISCONNECT_TIMEOUT = 2000;
+
+    // GATT operations, run one at a time
+    private final GattOperationQueue gattQueue = new GattOperationQueue();
+    // Retries busy writes, until abort
+    private final GattCharacteristicWriter gattWriter = new GattCharacteristicWriter( gattQueue, trace) {
+        @Override
+        protected boolean isCancelled() {
+            return abortReceived;
+        }
+    };
 
     BluetoothGattService pfService;
     BluetoothGattCharacteristic partialFlashCharacteristic;
 
+    // Connection and bonding state changes
     private final Object lock = new Object();
-    private final Object region_lock = new Object();
-
-    private static final byte PACKET_STATE_WAITING = 0;
-    private static final byte PACKET_STATE_SENT = (byte) 0xFF;
-    private static final byte PACKET_STATE_RETRANSMIT = (byte) 0xAA;
-    private static final byte PACKET_STATE_COMPLETE_FLASH = (byte) 0xCF;
-
-    private byte packetState = PACKET_STATE_WAITING;
+    // Link disconnected
+    private final Object disconnect_lock = new Object();
 
     private static final int STATE_DISCONNECTED = 0;
     private static final int STATE_CONNECTING = 1;
@@ -309,25 +429,29 @@ public abstract class PartialFlashingBaseService extends IntentService {
     private static final UUID CLIENT_CHARACTERISTIC_CONFIG = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
 
     // Regions
-    private static final int REGION_SD = 0;
-    private static final int REGION_DAL = 1;
-    private static final int REGION_MAKECODE = 2;
+    private static final int REGION_SD = MemoryMap.REGION_SD;
+    private static final int REGION_DAL = MemoryMap.REGION_DAL;
+    private static final int REGION_MAKECODE = MemoryMap.REGION_MAKECODE;
+
+    // Longest wait for all the regions
+    private static final long MEMORY_MAP_TIMEOUT = 2000;
+
+    // Timeouts used until enough latencies have been seen
+    private static final long CONNECT_TIMEOUT = 20000;         // each connection step
+    private static final long BONDING_TIMEOUT = 30000;         // may wait for the user
+    private static final long BONDED_DISCONNECT_TIMEOUT = 6000;
 
     // DAL Hash
-    private boolean python = false;
-    private String dalHash;
+    private volatile boolean python = false;
+    private volatile String dalHash;
     private String fileHash;
-    private long code_startAddress = 0;
-    private long code_endAddress = 0;
-
-    // Partial Flashing Commands
-    private static final byte REGION_INFO_COMMAND = 0x0;
-    private static final byte FLASH_COMMAND = 0x1;
+    private volatile long code_startAddress = 0;
+    private volatile long code_endAddress = 0;
 
     // Microbit Type
     private final int MICROBIT_V1 = 1;
     private final int MICROBIT_V2 = 2;
-    int hardwareType = MICROBIT_V1;
+    volatile int hardwareType = MICROBIT_V1;
 
     // Partial Flashing Return Values
     private static final int PF_SUCCESS = 0x0;
@@ -335,11 +459,37 @@ public abstract class PartialFlashingBaseService extends IntentService {
     private static final int PF_FAILED = 0x2;
 
     @SuppressLint("MissingPermission")
-    private void partialFlash(final String filePath, final String deviceAddress, final boolean pf) {
+    private void partialFlash(final String filePath, final String deviceAddress, final int hardwareTypeHint, final boolean pf) {
         logi("partialFlash");
+        trace.clear();
+
+        profile = profileStore != null ? profileStore.get( deviceAddress) : null;
+        if ( profile == null) {
+            profile = new DeviceProfileStore.Profile( deviceAddress);
+        }
+        notificationsAssumed = false;
+        link.reset();
+        transport = new GattTransport( deviceAddress);
+        protocol = new PartialFlashProtocol( transport, trace);
+
+        LatencyStats stats = LatencyStats.getInstance();
+        String deviceScope = LatencyStats.deviceScope( deviceAddress);
+        String modelScope = LatencyStats.modelScope( Build.MANUFACTURER + " " + Build.MODEL);
+        connectLatency = new LatencyStats.Series[] {
+                stats.getSeries( deviceScope, LatencyStats.PHASE_CONNECT),
+                stats.getSeries( modelScope, LatencyStats.PHASE_CONNECT) };
+        batchLatency = new LatencyStats.Series[] {
+                stats.getSeries( deviceScope, LatencyStats.PHASE_BATCH),
+                stats.getSeries( modelScope, LatencyStats.PHASE_BATCH) };
+
+        // Hex processing runs in parallel with connecting
+        // The board seen on the last flash is a better guess than the hint
+        int boardHint = profile.hardwareType != 0 ? profile.hardwareType : hardwareTypeHint;
+        Future<PartialFlashImage> prepared = prepareImage( filePath,
+                boardHint == MICROBIT_V2 ? HexUtils.BOARD_V2 : HexUtils.BOARD_V1);
 
         for (int i = 0; i < 3; i++) {
-            mBluetoothGatt = connect(deviceAddress);
+            transport.connect();
             if (abortReceived)
                 return;
             if (mBluetoothGatt != null)
@@ -368,7 +518,16 @@ public abstract class PartialFlashingBaseService extends IntentService {
         logi("Connected");
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
             if (serviceChangedCharacteristic() != null) {
-                if (!cccEnabled(serviceChangedCharacteristic(), false)) {
+                if (profile.serviceChangedEnabled && isBonded() && profileLooksStale()) {
+                    // The services changed without an indication, so check the CCC again
+                    logi("Device profile looks stale");
+                    profile.serviceChangedEnabled = false;
+                    profile.notificationsEnabled = false;
+                }
+                if (profile.serviceChangedEnabled && isBonded()) {
+                    // Indications are kept by the micro:bit for bonded devices
+                    logi("Service Changed enabled on an earlier flash");
+                } else if (!cccEnabled(serviceChangedCharacteristic(), false)) {
                     if (stateIsError()) {
                         return;
                     }
@@ -403,6 +562,7 @@ public abstract class PartialFlashingBaseService extends IntentService {
                         }
                     }
                 }
+                profile.serviceChangedEnabled = true;
             }
         }
 
@@ -420,8 +580,17 @@ public abstract class PartialFlashingBaseService extends IntentService {
         if (pf) {
             logi("Trying to partial flash");
             if (partialFlashCharacteristicCheck()) {
-                pfResult = attemptPartialFlash(filePath);
+                pfResult = attemptPartialFlash(filePath, prepared);
             }
+            link.restore( mBluetoothGatt);
+        }
+        trace.event( FlashTrace.EVENT_RESULT, pfResult, 0);
+        saveProfile( pfResult);
+
+        String traceDump = null;
+        if ( trace.isEnabled() && ( pfResult == PF_FAILED || DEBUG)) {
+            traceDump = trace.dump();
+            Log.w(TAG, "Partial flashing trace:\n" + traceDump);
         }
 
         String action = "";
@@ -477,11 +646,48 @@ public abstract class PartialFlashingBaseService extends IntentService {
             if (action.equals(BROADCAST_ERROR)) {
                 broadcast.putExtra(EXTRA_DATA, extra);
             }
+            if (action.equals(BROADCAST_PF_FAILED)) {
+                if (traceDump != null) {
+                    broadcast.putExtra(EXTRA_TRACE, traceDump);
+                }
+                putLinkExtras(broadcast);
+            }
             LocalBroadcastManager.getInstance(this).sendBroadcast(broadcast);
         }
         logi("partialFlash End");
     }
 
+    private boolean isBonded() {
+        return mBluetoothGatt.getDevice().getBondState() == BluetoothDevice.BOND_BONDED;
+    }
+
+    /*
+     * Whether the services found disagree with the profile
+     * A micro:bit that lost its bond or CCC state does not send Service Changed, so
+     * Android may have kept services from another program. That shows up as the partial
+     * flashing service being found when the profile says it was absent, or missing when
+     * the profile says it was there.
+     */
+    private boolean profileLooksStale() {
+        boolean found = mBluetoothGatt.getService( PARTIAL_FLASHING_SERVICE) != null;
+        return found != profile.hasPartialFlashService;
+    }
+
+    private void saveProfile( int pfResult) {
+        if ( profileStore == null) {
+            return;
+        }
+        profile.hardwareType = hardwareType;
+        if ( pfResult == PF_SUCCESS) {
+            profile.notificationsEnabled = true;
+        } else {
+            // Something may be stale - check everything next time
+            profile.serviceChangedEnabled = false;
+            profile.notificationsEnabled = false;
+        }
+        profileStore.put( profile);
+    }
+
     private boolean stateIsError() {
         if (mConnectionState == STATE_READY) {
             return false;
@@ -504,7 +710,7 @@ public abstract class PartialFlashingBaseService extends IntentService {
         if (mBluetoothGatt != null) {
             logi("disconnect");
             mBluetoothGatt.disconnect();
-            lockWait(2000);
+            waitForDisconnect();
             mBluetoothGatt.close();
             mBluetoothGatt = null;
         }
@@ -527,6 +733,16 @@ public abstract class PartialFlashingBaseService extends IntentService {
         @Override
         public void onConnectionStateChange(BluetoothGatt gatt, int status,
                                             int newState) {
+            // Track the link even when not working, so a disconnect can be waited for
+            synchronized (disconnect_lock) {
+                mLinkConnected = newState == BluetoothProfile.STATE_CONNECTED;
+                disconnect_lock.notifyAll();
+            }
+            GattTransport t = transport;
+            if ( t != null && newState != BluetoothProfile.STATE_CONNECTED) {
+                t.disconnected();
+            }
+
             if ( !working) {
                 logi("Not working");
                 return;
@@ -536,6 +752,7 @@ public abstract class PartialFlashingBaseService extends IntentService {
                 wasNotBonded = true;
             }
             
+            trace.event( FlashTrace.EVENT_CONNECTION_STATE, newState, status);
             logi( "onConnectionStateChange " + newState + " status " + status);
 
             if ( status != BluetoothGatt.GATT_SUCCESS) {
@@ -560,6 +777,7 @@ public abstract class PartialFlashingBaseService extends IntentService {
                     mConnectionState = STATE_ERROR;
                 }
                 // Clear locks
+                gattQueue.cancel();
                 synchronized (lock) {
                     lock.notifyAll();
                 }
@@ -576,10 +794,10 @@ public abstract class PartialFlashingBaseService extends IntentService {
                         /* Taken from Nordic. See reasoning here: https://github.com/NordicSemiconductor/Android-DFU-Library/blob/e0ab213a369982ae9cf452b55783ba0bdc5a7916/dfu/src/main/java/no/nordicsemi/android/dfu/DfuBaseService.java#L888 */
                         // NOTE: This also works with shorter waiting time. The gatt.discoverServices() must be called after the indication is received which is
                         // about 600ms after establishing connection. Values 600 - 1600ms should be OK.
+                        // connect() waits for the indication, up to SERVICE_CHANGED_TIMEOUT, then discovers
                         logi( "Already bonded - Wait for service changed");
-                        lockWait(1600);
-                        logi( "Already bonded - timeout");
-                        callDiscoverServices( gatt);
+                        mConnectedTime = SystemClock.elapsedRealtime();
+                        mDiscoverPending = true;
                         break;
                     case BluetoothDevice.BOND_BONDING:
                         logi( "BOND_BONDING");
@@ -599,6 +817,7 @@ public abstract class PartialFlashingBaseService extends IntentService {
                     Log.i(TAG, "Disconnected from GATT server.");
                     mConnectionState = STATE_DISCONNECTED;
                 }
+                gattQueue.cancel();
             }
 
             // Clear any locks
@@ -615,6 +834,7 @@ public abstract class PartialFlashingBaseService extends IntentService {
             if ( !working) {
                 return;
             }
+            gattQueue.complete( GattOperationQueue.TYPE_DISCOVER_SERVICES, null, status);
             
             if ( status != BluetoothGatt.GATT_SUCCESS) {
                 logi("ERROR - status");
@@ -673,90 +893,46 @@ public abstract class PartialFlashingBaseService extends IntentService {
         public void onServiceChanged (BluetoothGatt gatt) {
             super.onServiceChanged( gatt);
             logi( "onServiceChanged");
+            serviceChanged();
         }
         @Override
         // Result of a characteristic read operation
         public void onCharacteristicRead(BluetoothGatt gatt,
                                          BluetoothGattCharacteristic characteristic,
                                          int status) {
-            logi( "onServiceChanged");
+            logi( "onCharacteristicRead");
             logi( String.valueOf(status));
-            synchronized (lock) {
-                lock.notifyAll();
-            }
+            gattQueue.complete( GattOperationQueue.TYPE_READ_CHARACTERISTIC, characteristic.getUuid(), status,
+                    characteristic.getValue(), 0);
         }
 
         @Override
         public void onCharacteristicWrite(BluetoothGatt gatt,
                                           BluetoothGattCharacteristic characteristic,
                                           int status){
-            logi( "onCharacteristicWrite status " + status + " " + characteristic.getUuid());
-            onWriteCharacteristicStatus = status;
-            if(status == BluetoothGatt.GATT_SUCCESS) {
-                // Success
-                logi( "GATT status: Success");
-            } else {
+            trace.event( FlashTrace.EVENT_WRITE_COMPLETE, status, 0);
+            gattQueue.complete( GattOperationQueue.TYPE_WRITE_CHARACTERISTIC, characteristic.getUuid(), status);
+            if(status != BluetoothGatt.GATT_SUCCESS) {
                 // TODO Attempt to resend?
-                logi( "GATT WRITE ERROR. status:" + Integer.toString(status));
-            }
-            synchronized (lock) {
-                lock.notifyAll();
+                if ( DEBUG) {
+                    logi( "GATT WRITE ERROR. status:" + Integer.toString(status));
+                }
             }
         }
 
         @Override
         public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
             super.onCharacteristicChanged(gatt, characteristic);
-            logi( "onCharacteristicChanged " + characteristic.getUuid());
-            
-            byte notificationValue[] = characteristic.getValue();
-            logi( "Received Notification: " + bytesToHex(notificationValue));
-
-            // What command
-            switch(notificationValue[0])
-            {
-                case REGION_INFO_COMMAND: {
-                    // Get Hash + Start / End addresses
-                    logi( "Region: " + notificationValue[1]);
-
-                    byte[] startAddress = Arrays.copyOfRange(notificationValue, 2, 6);
-                    byte[] endAddress = Arrays.copyOfRange(notificationValue, 6, 10);
-                    logi( "startAddress: " + bytesToHex(startAddress) + " endAddress: " + bytesToHex(endAddress));
-
-                    if ( notificationValue[1] == REGION_MAKECODE) {
-                        code_startAddress = Byte.toUnsignedLong(notificationValue[5])
-                                + Byte.toUnsignedLong(notificationValue[4]) * 256
-                                + Byte.toUnsignedLong(notificationValue[3]) * 256 * 256
-                                + Byte.toUnsignedLong(notificationValue[2]) * 256 * 256 * 256;
-
-                        code_endAddress = Byte.toUnsignedLong(notificationValue[9])
-                                + Byte.toUnsignedLong(notificationValue[8]) * 256
-                                + Byte.toUnsignedLong(notificationValue[7]) * 256 * 256
-                                + Byte.toUnsignedLong(notificationValue[6]) * 256 * 256 * 256;
-                    }
-
-                    byte[] hash = Arrays.copyOfRange(notificationValue, 10, 18);
-                    logi( "Hash: " + bytesToHex(hash));
-
-                    // If Region is DAL get HASH
-                    if (notificationValue[1] == REGION_DAL && python == false)
-                        dalHash = bytesToHex(hash);
-
-                    if (notificationValue[1] == REGION_DAL && python == true)
-                        dalHash = bytesToHex(hash);
-
-                    synchronized (region_lock) {
-                        region_lock.notifyAll();
-                    }
+            if ( SERVICE_CHANGED_UUID.equals( characteristic.getUuid())) {
+                logi( "Service Changed indication");
+                serviceChanged();
+                return;
+            }
 
-                    break;
-                }
-                case FLASH_COMMAND: {
-                    packetState = notificationValue[1];
-                    synchronized (lock) {
-                        lock.notifyAll();
-                    }
-                }
+            // Partial flashing notifications go to the session's protocol
+            GattTransport t = transport;
+            if ( t != null) {
+                t.notification( characteristic.getValue());
             }
         }
 
@@ -770,17 +946,11 @@ public abstract class PartialFlashingBaseService extends IntentService {
             if(status == BluetoothGatt.GATT_SUCCESS) {
                 logi( "Descriptor read success");
                 logi( "GATT: " + gatt.toString() + ", Desc: " + descriptor.toString() + ", Status: " + status);
-                descriptorReadSuccess = true;
-                descriptorRead = descriptor;
-                descriptorValue = value;
             } else {
                 logi( "onDescriptorRead: " + status);
             }
 
-            synchronized (lock) {
-                lock.notifyAll();
-                logi( "onDescriptorWrite :: clear locks");
-            }
+            gattQueue.complete( GattOperationQueue.TYPE_READ_DESCRIPTOR, descriptorKey( descriptor), status, value, 0);
 
         }
 
@@ -793,18 +963,44 @@ public abstract class PartialFlashingBaseService extends IntentService {
             if(status == BluetoothGatt.GATT_SUCCESS) {
                 logi( "Descriptor success");
                 logi( "GATT: " + gatt.toString() + ", Desc: " + descriptor.toString() + ", Status: " + status);
-                descriptorWriteSuccess = true;
             } else {
                 logi( "onDescriptorWrite: " + status);
             }
 
-            synchronized (lock) {
-                lock.notifyAll();
-                logi( "onDescriptorWrite :: clear locks");
-            }
+            gattQueue.complete( GattOperationQueue.TYPE_WRITE_DESCRIPTOR, descriptorKey( descriptor), status);
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            logi( "onMtuChanged " + mtu + " status " + status);
+            gattQueue.complete( GattOperationQueue.TYPE_MTU, null, status, null, mtu);
+        }
+
+        @Override
+        public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+            logi( "onPhyUpdate " + txPhy + "/" + rxPhy + " status " + status);
+            link.onPhyUpdate( txPhy, rxPhy, status);
+        }
+
+        @Override
+        public void onPhyRead(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+            link.onPhyUpdate( txPhy, rxPhy, status);
+        }
+
+        // Hidden in the SDK, but called on Android 8+
+        public void onConnectionUpdated(BluetoothGatt gatt, int interval, int latency, int timeout, int status) {
+            logi( "onConnectionUpdated " + interval + " " + latency + " " + timeout + " status " + status);
+            link.onConnectionUpdated( interval, latency, timeout, status);
         }
     };
 
+    /*
+     * Descriptors are matched by characteristic and descriptor UUID
+     */
+    private static String descriptorKey( BluetoothGattDescriptor descriptor) {
+        return descriptor.getCharacteristic().getUuid() + "/" + descriptor.getUuid();
+    }
+
     @SuppressLint("MissingPermission")
     private boolean callDiscoverServices( BluetoothGatt gatt) {
         logi( "callDiscoverServices");
@@ -817,526 +1013,245 @@ public abstract class PartialFlashingBaseService extends IntentService {
         return success;
     }
 
-    /**
-     * Wait for up to 15ms for onWriteCharacteristic to be called
-     *
-     * onWriteCharacteristic is called even for NO_RESPONSE
-     *
-     * In a command and response sequence
-     * onWriteCharacteristic may be called before or after onCharacteristicChanged
-     *
-     * Calling writeCharacteristic again before onWriteCharacteristic
-     * returns ERROR_GATT_WRITE_REQUEST_BUSY
-     *
-     * @return status
-     */
-    private int waitForOnWriteCharacteristic() throws InterruptedException {
-        for ( int i = 0; i < 5; i++) {
-            if ( onWriteCharacteristicStatus != BLE_PENDING) {
-                break;
-            }
-            logi( "waitForOnWriteCharacteristic #" + i);
-            Thread.sleep(3);
-        }
-        logi( "waitForOnWriteCharacteristic = " + onWriteCharacteristicStatus);
-        return onWriteCharacteristicStatus;
-    }
-
-
     @SuppressLint("MissingPermission")
-    private int writeCharacteristic( BluetoothGattCharacteristic c, byte[] data, int writeType) {
-        logi( "writeCharacteristic " + c.getUuid() + " writeType " + writeType);
-        onWriteCharacteristicStatus = BLE_PENDING;
-        if ( Build.VERSION.SDK_INT < Build.VERSION_CODES.TIRAMISU) {
-            c.setWriteType( writeType);
-            c.setValue(data);
-            int status = mBluetoothGatt.writeCharacteristic(c) ? BluetoothGatt.GATT_SUCCESS : BLE_ERROR_UNKNOWN;
-            logi( "writeCharacteristic status " + status);
-            return status;
-        }
-
-        int status = mBluetoothGatt.writeCharacteristic( c, data, writeType);
-        logi( "writeCharacteristic status " + status);
-        return status;
+    /*
+     * Write a characteristic, once the previous operation has completed
+     * Android allows one outstanding write per connection. The write is handed to the
+     * stack when onCharacteristicWrite is called, even for NO_RESPONSE, so the queue slot
+     * is the only write credit. If the stack is still busy the write is retried with
+     * backoff for up to WRITE_TIMEOUT ms, rather than dropped.
+     * @return GATT_SUCCESS if the write was started, else the last error
+     */
+    private int writeCharacteristic( BluetoothGattCharacteristic c, byte[] data, int writeType) throws InterruptedException {
+        return gattWriter.write( mBluetoothGatt, c, data, writeType, WRITE_TIMEOUT);
     }
 
     // Write to BLE Flash Characteristic
-    private int writeCharacteristicPF( byte[] data, int writeType) {
+    private int writeCharacteristicPF( byte[] data, int writeType) throws InterruptedException {
         return writeCharacteristic( partialFlashCharacteristic, data, writeType);
     }
 
-    private int attemptPartialFlash(String filePath) {
-        logi( "Flashing: " + filePath);
+    /*
+     * The BLE link to the micro:bit, for PartialFlashProtocol
+     */
+    private class GattTransport implements PartialFlashTransport {
+        private final String deviceAddress;
+        private volatile Listener listener = null;
+        private boolean resuming = false;
 
-        sendProgressBroadcastStart();
+        GattTransport( String deviceAddress) {
+            this.deviceAddress = deviceAddress;
+        }
 
-        try {
+        @Override
+        public void setListener( Listener listener) {
+            this.listener = listener;
+        }
 
-            logi( "attemptPartialFlash()");
-            logi( filePath);
-            HexUtils hex = new HexUtils(filePath);
-            logi( "searchForData()");
-            python = false;
-            HexPos dataPos = findMakeCodeData( hex);
-            if ( dataPos == null) {
-                dataPos = findPythonData( hex);
-                if ( dataPos != null) {
-                    python = true;
-                }
+        @Override
+        public boolean connect() {
+            if ( abortReceived) {
+                return false;
             }
-
-            if ( dataPos == null) {
-                logi( "No partial flash data");
-                return PF_ATTEMPT_DFU;
+            mBluetoothGatt = PartialFlashingBaseService.this.connect( deviceAddress);
+            if ( mBluetoothGatt == null || !resuming) {
+                return mBluetoothGatt != null;
             }
 
-            logi( "Found partial flash data at " + dataPos.line + " at offset " + dataPos.part);
-
-            // Get Memory Map from Microbit
-            code_startAddress = code_endAddress = 0;
-            if ( !readMemoryMap())
-            {
-                Log.w(TAG, "Failed to read memory map");
-                return PF_ATTEMPT_DFU;
+            // Reconnected to resume a transfer, so set up the new connection as partialFlash() did
+            link.reset();
+            if ( !partialFlashCharacteristicCheck()) {
+                return false;
             }
-
-            if ( code_startAddress == 0 || code_endAddress <= code_startAddress)
-            {
-                logi( "Failed to read memory map code address");
-                return PF_ATTEMPT_DFU;
+            try {
+                requestMtu();
+            } catch ( InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
             }
-
-            // Compare DAL hash
-            if ( !fileHash.equals( dalHash)) {
-                logi( "Hash " + fileHash + " != " + ( dalHash));
-                return PF_ATTEMPT_DFU;
+            if ( isHighPriorityTransferEnabled()) {
+                link.raise( mBluetoothGatt);
             }
+            return true;
+        }
 
-            int count = 0;
-            int numOfLines = hex.numOfLines() - dataPos.line;
-            logi( "Total lines: " + numOfLines);
-
-            int packetNum = 0;
-            int lineCount = 0;
-            int part = dataPos.part;
-            int line0 = lineCount;
-            int part0 = part;
-
-            int  addrLo = hex.getRecordAddressFromIndex( dataPos.line + lineCount);
-            int  addrHi = hex.getSegmentAddress(dataPos.line + lineCount);
-            long addr   = (long) addrLo + (long) addrHi * 256 * 256;
-
-            String hexData;
-            String partData;
+        @Override
+        public boolean enableNotifications() {
+            return cccEnable( partialFlashCharacteristic, true);
+        }
 
-            Log.w(TAG, "Code start " + code_startAddress + " end " + code_endAddress);
-            Log.w(TAG, "First line " + addr);
+        @Override
+        public int write( byte[] data) throws InterruptedException {
+            if ( partialFlashCharacteristic == null || mBluetoothGatt == null) {
+                return BLE_ERROR_UNKNOWN;
+            }
+            return writeCharacteristicPF( data, NO_RESPONSE);
+        }
+
+        /**
+         * Wait for onWriteCharacteristic to be called
+         * The wait ends as soon as onWriteCharacteristic is called
+         *
+         * onWriteCharacteristic is called even for NO_RESPONSE
+         *
+         * In a command and response sequence
+         * onWriteCharacteristic may be called before or after onCharacteristicChanged
+         *
+         * Calling writeCharacteristic again before onWriteCharacteristic
+         * returns ERROR_GATT_WRITE_REQUEST_BUSY
+         *
+         * @return status, or BLE_TIMEOUT
+         */
+        @Override
+        public int awaitWrite( long timeout) throws InterruptedException {
+            return gattQueue.await( timeout);
+        }
 
-            // Ready to flash!
-            // Loop through data
-            logi( "enter flashing loop");
+        @Override
+        public int getMtu() {
+            return mMtu;
+        }
 
-            long addr0 = addr + part / 2;  // two hex digits per byte
-            int  addr0Lo = (int) ( addr0 % (256 * 256));
-            int  addr0Hi = (int) ( addr0 / (256 * 256));
+        @Override
+        public void disconnect() {
+            // Only a session disconnects, to reconnect and resume
+            resuming = true;
+            disconnectAndClose();
+        }
 
-            if ( code_startAddress != addr0) {
-                logi( "Code start address doesn't match");
-                return PF_ATTEMPT_DFU;
+        // From the GATT callbacks
+        void notification( byte[] value) {
+            Listener l = listener;
+            if ( l != null) {
+                l.onNotification( value);
             }
+        }
 
-            // TODO - check size of code in file matches micro:bit
+        void disconnected() {
+            Listener l = listener;
+            if ( l != null) {
+                l.onDisconnected();
+            }
+        }
+    }
 
-            boolean endOfFile = false;
-            long startTime = SystemClock.elapsedRealtime();
-            while (true) {
-                // Timeout if total is > 30 seconds
-                if(SystemClock.elapsedRealtime() - startTime > 60000) {
-                    logi( "Partial flashing has timed out");
-                    return PF_FAILED;
+    /*
+     * Start locating the code and compiling the packets while the connection is made
+     * @param filePath hex file
+     * @param board expected board, HexUtils.BOARD_V1 or HexUtils.BOARD_V2
+     * @return the located image, when ready
+     */
+    private Future<PartialFlashImage> prepareImage( final String filePath, final int board) {
+        return prepareExecutor.submit( new Callable<PartialFlashImage>() {
+            @Override
+            public PartialFlashImage call() throws Exception {
+                PartialFlashImage image = PartialFlashImageCache.getInstance().get( filePath, board);
+                if ( image.hasPartialFlashData()) {
+                    image.getPlan();
                 }
+                return image;
+            }
+        });
+    }
 
-                // Check if EOF
-                if ( endOfFile || hex.getRecordTypeFromIndex( dataPos.line + lineCount) != 0) {
-                    if ( count == 0) {
-                        break;
-                    }
-                    endOfFile = true;
-                }
+    private int attemptPartialFlash(String filePath, Future<PartialFlashImage> prepared) {
+        logi( "Flashing: " + filePath);
 
-                if ( endOfFile) {
-                    // complete the batch of 4 packets with FF
-                    char[] c32 = new char[32];
-                    Arrays.fill( c32, 'F');
-                    hexData = new String( c32);
-                    partData = hexData;
-                } else {
-                    addrLo = hex.getRecordAddressFromIndex(dataPos.line + lineCount);
-                    addrHi = hex.getSegmentAddress(dataPos.line + lineCount);
-                    addr = (long) addrLo + (long) addrHi * 256 * 256;
+        sendProgressBroadcastStart();
 
-                    hexData = hex.getDataFromIndex(dataPos.line + lineCount);
-                    if (part + 32 > hexData.length()) {
-                        partData = hexData.substring(part);
-                    } else {
-                        partData = hexData.substring(part, part + 32);
-                    }
-                }
+        try {
 
-                int offsetToSend = 0;
-                if ( count == 0)
-                {
-                    line0 = lineCount;
-                    part0 = part;
-                    addr0 = addr + part / 2;  // two hex digits per byte
-                    addr0Lo = (int) ( addr0 % (256 * 256));
-                    addr0Hi = (int) ( addr0 / (256 * 256));
-                    offsetToSend = addr0Lo;
-                } else if (count == 1) {
-                    offsetToSend = addr0Hi;
+            logi( "attemptPartialFlash()");
+            logi( filePath);
+            int board = hardwareType == MICROBIT_V2 ? HexUtils.BOARD_V2 : HexUtils.BOARD_V1;
+            PartialFlashImage image = null;
+            try {
+                image = prepared.get();
+            } catch ( ExecutionException e) {
+                Log.e(TAG, "Error opening file: " + e.getCause());
+                return PF_ATTEMPT_DFU;
+            }
+            if ( image.getBoard() != board) {
+                // Prepared for the other board
+                try {
+                    // Parsed and located once per file, then reused for further flashes
+                    image = PartialFlashImageCache.getInstance().get( filePath, board);
+                } catch ( IOException e) {
+                    Log.e(TAG, "Error opening file: " + e);
+                    return PF_ATTEMPT_DFU;
                 }
+            }
 
-                logi( packetNum + " " + count + " addr0 " + addr0 + " offsetToSend " + offsetToSend + " line " + lineCount + " addr " + addr + " part " + part + " data " + partData + " endOfFile " + endOfFile);
-
-                // recordToByteArray() builds a PF command block with the data
-                byte[] chunk = HexUtils.recordToByteArray(partData, offsetToSend, packetNum);
-
-                // Write without response
-                // Wait for previous write to complete
-                int writeStatus = writeCharacteristicPF( chunk, NO_RESPONSE);
-
-                // Sleep after 4 packets
-                count++;
-                if ( count != 4) {
-                    waitForOnWriteCharacteristic();
-                } else {
-                    count = 0;
-
-                    // Wait for notification
-                    logi( "Wait for notification");
-
-                    // Send broadcast while waiting
-                    int percent = Math.round((float)100 * ((float)(lineCount) / (float)(numOfLines)));
-                    sendProgressBroadcast(percent);
-
-                    long timeout = SystemClock.elapsedRealtime();
-                    while(packetState == PACKET_STATE_WAITING) {
-                        synchronized (lock) {
-                            lock.wait(5000);
-                        }
+            if ( !image.hasPartialFlashData()) {
+                logi( "No partial flash data");
+                return PF_ATTEMPT_DFU;
+            }
 
-                        // Timeout if longer than 5 seconds
-                        if((SystemClock.elapsedRealtime() - timeout) > 5000)
-                            return PF_FAILED;
+            python = image.isPython();
+            fileHash = image.getFileHash();
+
+            logi( "Found partial flash data at " + image.getDataLine() + " at offset " + image.getDataPart());
+
+            requestMtu();
+
+            PartialFlashSession session = new PartialFlashSession( protocol, image);
+            session.setBatchWindow( getBatchWindow());
+            session.setWriteTimeout( WRITE_TIMEOUT);
+            session.setMemoryMapTimeout( MEMORY_MAP_TIMEOUT);
+            session.setAdaptiveTimeouts( isAdaptiveTimeoutEnabled());
+            session.setBatchLatency( batchLatency);
+            session.setNotificationsAssumed( notificationsAssumed);
+            session.setResumeAttempts( getResumeAttempts());
+            session.setListener( new PartialFlashSession.Listener() {
+                @Override
+                public void onTransferStart( PartialFlashPlan plan) {
+                    logi( "MTU " + mMtu + " packet data size " + plan.getPacketDataSize());
+                    logi( "First line " + plan.getStartAddress());
+                    if ( isHighPriorityTransferEnabled()) {
+                        // Granted values arrive in onConnectionUpdated and onPhyUpdate
+                        link.raise( mBluetoothGatt);
                     }
-
-                    packetState = PACKET_STATE_WAITING;
-
-                    logi( "/Wait for notification");
+                    logi( "Batch window " + protocol.getBatchWindow());
+                    logi( "enter flashing loop");
                 }
 
-                // If notification is retransmit -> retransmit last block.
-                // Else set start of new block
-                if(packetState == PACKET_STATE_RETRANSMIT) {
-                    lineCount = line0;
-                    part = part0;
-                    endOfFile = false;
-                } else {
-                    if ( !endOfFile) {
-                        // Next part
-                        part = part + partData.length();
-                        if (part >= hexData.length()) {
-                            part = 0;
-                            lineCount = lineCount + 1;
-                        }
-                    }
+                @Override
+                public void onProgress( int percent) {
+                    sendProgressBroadcast( percent);
                 }
-
-                // Always increment packet #
-                packetNum = packetNum + 1;
+            });
+            gattWriter.resetRetries();
+
+            int result = session.flash();
+            saveMemoryMap();
+            if ( result != PartialFlashSession.RESULT_SUCCESS) {
+                logi( session.getFailure());
+                logi( session.getRetransmits() + " retransmits");
+                return result == PartialFlashSession.RESULT_FAILED ? PF_FAILED : PF_ATTEMPT_DFU;
             }
 
-            Thread.sleep(100); // allow time for write to complete
-
-            // Write End of Flash packet
-            byte[] endOfFlashPacket = {(byte)0x02};
-            int writeStatus = writeCharacteristicPF( endOfFlashPacket, NO_RESPONSE);
-
-            Thread.sleep(100); // allow time for write to complete
-
             // Finished Writing
             logi( "Flash Complete");
-            packetState = PACKET_STATE_COMPLETE_FLASH;
-            sendProgressBroadcast(100);
             sendProgressBroadcastComplete();
 
             // Time execution
-            long endTime = SystemClock.elapsedRealtime();
-            long elapsedMilliSeconds = endTime - startTime;
-            double elapsedSeconds = elapsedMilliSeconds / 1000.0;
+            double elapsedSeconds = session.getPhaseTime( PartialFlashSession.PHASE_TRANSFER) / 1000.0;
             logi( "Flash Time: " + Float.toString((float)elapsedSeconds) + " seconds");
-        } catch (IOException e) {
-            e.printStackTrace();
+            if ( session.getResumeCount() > 0) {
+                logi( "Resumed " + session.getResumeCount() + " times, last from batch " + session.getResumePoint().batch);
+            }
+            logi( "Memory map " + session.getPhaseTime( PartialFlashSession.PHASE_MEMORY_MAP) + "ms, "
+                    + (int) session.getThroughput() + " bytes/s");
+            logi( "Busy write retries " + gattWriter.getRetries());
+            logi( "Interval " + link.getInterval() + " PHY " + link.getTxPhy() + "/" + link.getRxPhy());
         } catch (InterruptedException e) {
             e.printStackTrace();
-        }
-
-        // Check complete before leaving intent
-        if (packetState != PACKET_STATE_COMPLETE_FLASH) {
             return PF_FAILED;
         }
 
         return PF_SUCCESS;
     }
 
-    private class HexPos {
-        public int line;
-        public int part; // offset into line data in characters
-        public int sizeBytes;
-        public void hexPos() {
-            line = -1;
-            part = -1;
-            sizeBytes = 0;
-        }
-    }
-
-    private HexPos findMakeCodeData( HexUtils hex) throws IOException {
-        HexPos pos = new HexPos();
-        pos.line = hex.searchForData(PXT_MAGIC);
-        if ( pos.line < 0) {
-            return null;
-        }
-        String magicData = hex.getDataFromIndex( pos.line);
-        pos.part = magicData.indexOf(PXT_MAGIC);
-        long hdrAddress = hexPosToAddress( hex, pos);
-        long hashAddress = hdrAddress + PXT_MAGIC.length() / 2;
-        HexPos hashPos = hexAddressToPos( hex, hashAddress);
-        if ( hashPos == null) {
-            return null;
-        }
-        hashPos.sizeBytes =  8;
-        fileHash = hexGetData( hex, hashPos);
-        if ( fileHash.length() < 8 * 2) {  // 16 bytes
-            return null;
-        }
-        // TODO - find end of data pos.sizeBytes
-        return pos;
-    }
-
-    //    Micropython region table
-    //    https://github.com/microbit-foundation/micropython-microbit-v2/blob/a76e1413bcd66f128a31d98756fc3d1f336d1580/src/addlayouttable.py
-
-    public final static int PYTHON_HEADER_SIZE = 16;
-    public final static int PYTHON_REGION_SIZE = 16;
-
-    private HexPos findPythonData( HexUtils hex) throws IOException {
-        HexPos pos = new HexPos();
-        pos.line = hex.searchForDataRegEx(UPY_MAGIC);
-        if ( pos.line < 0) {
-            return null;
-        }
-        String header = hex.getDataFromIndex( pos.line);
-        pos.part = header.indexOf(UPY_MAGIC1);
-        pos.sizeBytes = PYTHON_HEADER_SIZE;
-        header = hexGetData( hex, pos);
-        if ( header.length() < PYTHON_HEADER_SIZE * 2) {
-            return null;
-        }
-        int version     = hexToUint16( header, 8);
-        int table_len   = hexToUint16( header, 12);
-        int num_reg     = hexToUint16( header, 16);
-        int pageLog2    = hexToUint16( header, 20);
-        if ( version != 1) {
-            return null;
-        }
-        if ( table_len != num_reg * 16) {
-            return null;
-        }
-        int page = hardwareType == MICROBIT_V1 ? 0x400 : 0x1000;
-        if ( 1 << pageLog2 != page) {
-            return null;
-        }
-
-        long codeStart = -1;
-        long codeLength = -1;
-
-        long hdrAddress = hexPosToAddress( hex, pos);
-        for ( int regionIndex = 0; regionIndex < num_reg; regionIndex++)
-        {
-            long regionAddress = hdrAddress - table_len + (long) ( regionIndex * PYTHON_REGION_SIZE);
-            pos = hexAddressToPos( hex, regionAddress);
-            if ( pos == null) {
-                return null;
-            }
-            pos.sizeBytes =  PYTHON_REGION_SIZE;
-            String region = hexGetData( hex, pos);
-            if ( region.length() < PYTHON_REGION_SIZE * 2) {
-                return null;
-            }
-            int regionID    = hexToUint8(  region, 0);
-            int hashType    = hexToUint8(  region, 2);
-            int startPage   = hexToUint16( region, 4);
-            long length     = hexToUint32( region, 8);
-            long hashPtr    = hexToUint32( region, 16);
-            String hash     = region.substring( 16, 32);
-
-            // Extract regionHash
-            String regionHash = null;
-            switch ( hashType)
-            {
-                default:
-                    // Unknown
-                    return null;
-                case 0:
-                    //hash data is empty
-                    break;
-                case 1:
-                    // hash data contains 8 bytes of verbatim data
-                    regionHash = hash;
-                    break;
-                case 2: {
-                    // hash data contains a 4-byte pointer to a string of up tp 100 chars
-                    // hash is the crc32 of the string
-                    HexPos hashPos = hexAddressToPos( hex, hashPtr);
-                    if ( hashPos == null) {
-                        return null;
-                    }
-                    hashPos.sizeBytes = 100;
-                    String hashData = hexGetData( hex, hashPos);
-                    if ( hashData.isEmpty()) {
-                        return null;
-                    }
-                    int strLen = 0;
-                    while ( strLen < hashData.length() / 2) {
-                        int chr = hexToUint8( hashData, strLen * 2);
-                        if ( chr == 0) {
-                            break;
-                        }
-                        strLen++;
-                    }
-                    byte [] strBytes = new byte[ strLen];
-                    for ( int i = 0; i < strLen; i++) {
-                        int chr = hexToUint8( hashData, i * 2);
-                        strBytes[i] = (byte) chr;
-                    }
-                    CRC32 crc32 = new CRC32();
-                    crc32.update( strBytes);
-                    long crc = crc32.getValue();
-                    byte [] hashBytes = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong( crc).array();
-                    regionHash = bytesToHex( hashBytes);
-                    break;
-                }
-            }
-
-            // Use regionHash from app region and code start & end from file system
-            switch ( regionID)
-            {
-                case 1: // softdevice
-                    break;
-                case 2: // micropython app
-                    fileHash = regionHash;
-                    break;
-                case 3: // file system
-                    codeStart = (long) startPage * page;
-                    codeLength = length;
-                    break;
-            }
-        }
-
-        if ( codeStart < 0 || codeLength < 0) {
-            return null;
-        }
-        int index = hex.searchForAddress( codeStart);
-        pos = hexAddressToPos( hex, codeStart);
-        if ( pos == null) {
-            return null;
-        }
-        pos.sizeBytes = (int) codeLength;
-        return pos;
-    }
-
-    private long hexPosToAddress( HexUtils hex, HexPos pos) throws IOException {
-        int addrLo = hex.getRecordAddressFromIndex( pos.line);
-        int addrHi = hex.getSegmentAddress(pos.line);
-        long addr = (long) addrLo + (long) addrHi * 256 * 256;
-        return addr + pos.part / 2;
-    }
-
-    private HexPos hexAddressToPos( HexUtils hex, long address) throws IOException {
-        HexPos pos = new HexPos();
-        pos.line = hex.searchForAddress( address);
-        if ( pos.line < 0) {
-            return null;
-        }
-        int lineAddr = hex.getRecordAddressFromIndex( pos.line);
-        long addressLo = address % 0x10000;
-        long offset = addressLo - lineAddr;
-        pos.part = (int) offset * 2;
-        return pos;
-    }
-
-    private String hexGetData( HexUtils hex, final HexPos pos) throws IOException {
-        StringBuilder data = new StringBuilder();
-        int line = pos.line;
-        int part = pos.part;
-        int size = pos.sizeBytes * 2; // 2 characters per byte
-        while ( size > 0) {
-            int type = hex.getRecordTypeFromIndex( line);
-            if ( type != 0 && type != 0x0D) {
-                line++;
-                part = 0;
-            } else {
-                String lineData = hex.getDataFromIndex(line);
-                int len = lineData.length();
-                int chunk = Math.min(len - part, size);
-                if (chunk > 0) {
-                    data.append(lineData.substring(part, part + chunk));
-                    part += chunk;
-                    size -= chunk;
-                }
-                if (size > 0 && part >= len) {
-                    line += 1;
-                    part = 0;
-                    if (line >= hex.numOfLines()) {
-                        break;
-                    }
-                }
-            }
-        }
-        return data.toString();
-    }
-
-    private static int hexToUint8( String hex, int idx) {
-        int hi = Character.digit( hex.charAt( idx), 16);
-        int lo = Character.digit( hex.charAt( idx + 1), 16);
-        if ( lo < 0 || hi < 0) {
-            return -1;
-        }
-        return hi * 16 + lo;
-    }
-
-    private static int hexToUint16( String hex, int idx)
-    {
-        int lo = hexToUint8( hex, idx);
-        int hi = hexToUint8( hex, idx + 2);
-        if ( lo < 0 || hi < 0) {
-            return -1;
-        }
-        return hi * 256 + lo;
-    }
-
-    private static long hexToUint32( String hex, int idx)
-    {
-        long b0 = hexToUint8( hex, idx);
-        long b1 = hexToUint8( hex, idx + 2);
-        long b2 = hexToUint8( hex, idx + 4);
-        long b3 = hexToUint8( hex, idx + 6);
-        if ( b0 < 0 || b1 < 0 || b2 < 0 || b3 < 0) {
-            return -1;
-        }
-        return b0 + b1 * 0x100 + b2 * 0x10000 + b3 * 0x1000000;
-    }
-
     @SuppressLint("MissingPermission")
     protected BluetoothGatt connect(@NonNull final String address) {
         if (!mBluetoothAdapter.isEnabled())
@@ -1350,6 +1265,10 @@ public abstract class PartialFlashingBaseService extends IntentService {
         mConnectionState = STATE_CONNECTING;
         mWaitingForServices = false;
         mWaitingForBonding = false;
+        mDiscoverPending = false;
+        mServiceChanged = false;
+        mLinkConnected = false;
+        mMtu = DEFAULT_MTU;
         int stateWas = mConnectionState;
 
         final BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
@@ -1382,19 +1301,37 @@ public abstract class PartialFlashingBaseService extends IntentService {
 
         // We have to wait until the device is connected and services are discovered
         // Connection error may occur as well.
+        long connectTimeout = CONNECT_TIMEOUT;
+        if ( isAdaptiveTimeoutEnabled()) {
+            // No step takes longer than a whole connection, so scale from that
+            connectTimeout = LatencyStats.timeout( 99, 2.0, 2000, 5000, 30000, CONNECT_TIMEOUT, connectLatency);
+        }
+        boolean bonding = false;
+
         try {
             boolean waiting = true;
             while ( waiting && mConnectionState != STATE_READY) {
 
-                int timeout = 20000;
+                long timeout = connectTimeout;
                 if ( mConnectionState == STATE_BONDED_DISCONNECT) {
-                    timeout = 6000;
+                    timeout = BONDED_DISCONNECT_TIMEOUT;
+                    bonding = true;
                 } else if ( mWaitingForBonding) {
-                    timeout = 30000;
+                    timeout = BONDING_TIMEOUT;
+                    bonding = true;
                 }
 
+                // Wait for the state to change. Checked under the lock, so a change
+                // made just before the wait is not missed.
+                long waitStart = SystemClock.elapsedRealtime();
                 synchronized (lock) {
-                    lock.wait( timeout);
+                    while ( mConnectionState == stateWas && !mDiscoverPending && !abortReceived) {
+                        long remaining = timeout - ( SystemClock.elapsedRealtime() - waitStart);
+                        if ( remaining <= 0) {
+                            break;
+                        }
+                        lock.wait( remaining);
+                    }
                 }
 
                 String time = Float.toString((float) ( SystemClock.elapsedRealtime() - start) / 1000.0f);
@@ -1435,6 +1372,18 @@ public abstract class PartialFlashingBaseService extends IntentService {
                     mConnectionState = STATE_ERROR;
                 }
 
+                boolean discovering = false;
+                if ( mDiscoverPending) {
+                    mDiscoverPending = false;
+                    if ( mConnectionState == STATE_CONNECTED) {
+                        waitForServiceChanged();
+                    }
+                    if ( mConnectionState == STATE_CONNECTED) {
+                        logi( "Already bonded - discover services");
+                        discovering = callDiscoverServices( gatt);
+                    }
+                }
+
                 waiting = false;
                 switch ( mConnectionState) {
                     case STATE_READY:
@@ -1444,7 +1393,7 @@ public abstract class PartialFlashingBaseService extends IntentService {
                     case STATE_BONDED:
                         break;
                     default:
-                        if ( stateWas != mConnectionState)
+                        if ( stateWas != mConnectionState || discovering)
                             waiting = true;
                         break;
                 }
@@ -1457,16 +1406,93 @@ public abstract class PartialFlashingBaseService extends IntentService {
         if ( mConnectionState != STATE_READY) {
             working = false;
             gatt.disconnect();
-            lockWait(2000);
+            waitForDisconnect();
             gatt.close();
             return null;
         }
 
+        // Bonding time depends on the user, so is not a link latency
+        if ( !bonding) {
+            recordLatency( connectLatency, SystemClock.elapsedRealtime() - start);
+        }
+
         logi( "Connected to gatt");
         logi( gatt.toString());
         return gatt;
     }
 
+    /*
+     * Ask for a larger MTU, so packets can carry more data if the firmware allows
+     * Android negotiates the LE data length itself once the MTU is raised.
+     * @return the MTU in use
+     */
+    @SuppressLint("MissingPermission")
+    private int requestMtu() throws InterruptedException {
+        if ( gattQueue.begin( GattOperationQueue.TYPE_MTU, null, OPERATION_TIMEOUT) < 0) {
+            logi( "requestMtu: GATT busy");
+            return mMtu;
+        }
+        if ( !mBluetoothGatt.requestMtu( REQUESTED_MTU)) {
+            gattQueue.fail( BLE_ERROR_UNKNOWN);
+            return mMtu;
+        }
+        if ( gattQueue.await( OPERATION_TIMEOUT) == BluetoothGatt.GATT_SUCCESS) {
+            mMtu = gattQueue.getIntValue();
+        }
+        return mMtu;
+    }
+
+    private static void recordLatency( LatencyStats.Series[] series, long ms) {
+        for ( LatencyStats.Series s : series) {
+            s.add( ms);
+        }
+    }
+
+    /*
+     * Wait for the Service Changed indication that a bonded micro:bit may send after
+     * connecting. Ends early on the indication, a state change or abort.
+     */
+    private void waitForServiceChanged() throws InterruptedException {
+        synchronized (lock) {
+            while ( !mServiceChanged && mConnectionState == STATE_CONNECTED && !abortReceived) {
+                long remaining = SERVICE_CHANGED_TIMEOUT - ( SystemClock.elapsedRealtime() - mConnectedTime);
+                if ( remaining <= 0) {
+                    logi( "Already bonded - timeout");
+                    return;
+                }
+                lock.wait( remaining);
+            }
+        }
+    }
+
+    private void serviceChanged() {
+        synchronized (lock) {
+            mServiceChanged = true;
+            lock.notifyAll();
+        }
+    }
+
+    /*
+     * Wait for onConnectionStateChange to report the link is down
+     */
+    private void waitForDisconnect() {
+        long start = SystemClock.elapsedRealtime();
+        synchronized (disconnect_lock) {
+            try {
+                while ( mLinkConnected) {
+                    long remaining = DISCONNECT_TIMEOUT - ( SystemClock.elapsedRealtime() - start);
+                    if ( remaining <= 0) {
+                        logi( "Disconnect timeout");
+                        return;
+                    }
+                    disconnect_lock.wait( remaining);
+                }
+            } catch (final InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
     private boolean lockWait( long timeout)
     {
         logi( "lockWait");
@@ -1511,8 +1537,18 @@ public abstract class PartialFlashingBaseService extends IntentService {
                 } catch (final Exception e) {
                 }
                 mWaitingForServices = true;
-                mBluetoothGatt.discoverServices();
-                lockWait(2000);
+                try {
+                    if ( gattQueue.begin( GattOperationQueue.TYPE_DISCOVER_SERVICES, null, OPERATION_TIMEOUT) < 0) {
+                        logi( "refreshV1: GATT busy");
+                    } else {
+                        if ( !mBluetoothGatt.discoverServices()) {
+                            gattQueue.fail( BLE_ERROR_UNKNOWN);
+                        }
+                        gattQueue.await( 2000);
+                    }
+                } catch ( InterruptedException e) {
+                    e.printStackTrace();
+                }
             }
         }
     }
@@ -1546,12 +1582,20 @@ public abstract class PartialFlashingBaseService extends IntentService {
             return false;
         }
 
-        descriptorReadSuccess = false;
-        mBluetoothGatt.readDescriptor(ccc);
-        lockWait(1000);
-        if (!descriptorReadSuccess
-                || !descriptorRead.getUuid().equals(CLIENT_CHARACTERISTIC_CONFIG)
-                || !descriptorRead.getCharacteristic().getUuid().equals(chr.getUuid())) {
+        byte[] descriptorValue;
+        try {
+            if ( gattQueue.begin( GattOperationQueue.TYPE_READ_DESCRIPTOR, descriptorKey( ccc), OPERATION_TIMEOUT) < 0) {
+                return false;
+            }
+            if ( !mBluetoothGatt.readDescriptor(ccc)) {
+                gattQueue.fail( BLE_ERROR_UNKNOWN);
+            }
+            if ( gattQueue.await( OPERATION_TIMEOUT) != BluetoothGatt.GATT_SUCCESS) {
+                return false;
+            }
+            descriptorValue = gattQueue.getValue();
+        } catch ( InterruptedException e) {
+            e.printStackTrace();
             return false;
         }
         if ( descriptorValue == null || descriptorValue.length != 2) {
@@ -1583,15 +1627,25 @@ public abstract class PartialFlashingBaseService extends IntentService {
                 ? BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE
                 : BluetoothGattDescriptor.ENABLE_INDICATION_VALUE;
 
-        descriptorWriteSuccess = false;
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
-            mBluetoothGatt.writeDescriptor( ccc, enable);
-        } else {
-            ccc.setValue(enable);
-            mBluetoothGatt.writeDescriptor( ccc);
+        try {
+            if ( gattQueue.begin( GattOperationQueue.TYPE_WRITE_DESCRIPTOR, descriptorKey( ccc), OPERATION_TIMEOUT) < 0) {
+                return false;
+            }
+            boolean started;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+                started = mBluetoothGatt.writeDescriptor( ccc, enable) == BluetoothGatt.GATT_SUCCESS;
+            } else {
+                ccc.setValue(enable);
+                started = mBluetoothGatt.writeDescriptor( ccc);
+            }
+            if ( !started) {
+                gattQueue.fail( BLE_ERROR_UNKNOWN);
+            }
+            return gattQueue.await( OPERATION_TIMEOUT) == BluetoothGatt.GATT_SUCCESS;
+        } catch ( InterruptedException e) {
+            e.printStackTrace();
+            return false;
         }
-        lockWait(1000);
-        return descriptorWriteSuccess;
     }
 
     protected boolean partialFlashCharacteristicCheck() {
@@ -1603,6 +1657,9 @@ public abstract class PartialFlashingBaseService extends IntentService {
         // Check partial flashing service exists
         if (pfService == null) {
             logi( "Partial Flashing Service == null");
+            if ( profile != null) {
+                profile.hasPartialFlashService = false;
+            }
             return false;
         }
 
@@ -1613,6 +1670,17 @@ public abstract class PartialFlashingBaseService extends IntentService {
             logi( "Partial Flashing Characteristic == null");
             return false;
         }
+        if ( profile != null) {
+            profile.hasPartialFlashService = true;
+        }
+
+        if ( profile != null && profile.notificationsEnabled && isBonded()) {
+            // Enabled on an earlier flash. Checked by the memory map replies.
+            logi( "Notifications enabled on an earlier flash");
+            mBluetoothGatt.setCharacteristicNotification( partialFlashCharacteristic, true);
+            notificationsAssumed = true;
+            return true;
+        }
 
         logi( "Enable notifications");
         if ( !cccEnable( partialFlashCharacteristic, true))
@@ -1641,15 +1709,12 @@ public abstract class PartialFlashingBaseService extends IntentService {
 
         byte payload[] = {0x01};
         microbitDFUCharacteristic.setValue(payload);
-        int status = writeCharacteristic( microbitDFUCharacteristic, payload, WITH_RESPONSE);
-        logi( "MicroBitDFU :: Enter DFU Result " + status);
-
-        synchronized (lock) {
-            try {
-                lock.wait(1000);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
+        try {
+            int status = writeCharacteristic( microbitDFUCharacteristic, payload, WITH_RESPONSE);
+            logi( "MicroBitDFU :: Enter DFU Result " + status);
+            gattQueue.await( OPERATION_TIMEOUT);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
         }
 
         // assume it succeeded
@@ -1657,38 +1722,26 @@ public abstract class PartialFlashingBaseService extends IntentService {
     }
 
     /*
-    Read Memory Map from the MB
+     * Keep the memory map read by the session, for the device profile
      */
-    @SuppressLint("MissingPermission")
-    private boolean readMemoryMap() {
-        logi( "readMemoryMap");
+    private void saveMemoryMap() {
+        dalHash = null;
+        code_startAddress = code_endAddress = 0;
 
-        try {
-            for (int i = 0; i < 3; i++)
-            {
-                // Get Start, End, and Hash of each Region
-                // Request Region
-                logi( "Request Region " + i);
-                byte[] payload = {REGION_INFO_COMMAND, (byte)i};
-                if(partialFlashCharacteristic == null || mBluetoothGatt == null) return false;
-                int status = writeCharacteristicPF( payload, WITH_RESPONSE);
-                if( status != BluetoothGatt.GATT_SUCCESS) {
-                    logi( "Failed to write to Region characteristic " + i);
-                    return false;
-                }
-                synchronized (region_lock) {
-                    region_lock.wait(2000);
-                }
-                if ( waitForOnWriteCharacteristic() != BluetoothGatt.GATT_SUCCESS) {
-                    return false;
-                }
-            }
-        } catch (Exception e){
-            Log.e(TAG, e.toString());
-            return false;
+        MemoryMap memoryMap = protocol.getMemoryMap();
+        MemoryMap.Region code = memoryMap.get( REGION_MAKECODE);
+        if ( code != null) {
+            logi( "startAddress: " + code.startAddress + " endAddress: " + code.endAddress);
+            code_startAddress = code.startAddress;
+            code_endAddress = code.endAddress;
         }
 
-        return true;
+        // If Region is DAL get HASH
+        MemoryMap.Region dal = memoryMap.get( REGION_DAL);
+        if ( dal != null) {
+            logi( "Hash: " + dal.hash);
+            dalHash = dal.hash;
+        }
     }
 
     public static String bytesToHex(byte[] bytes) {
@@ -0,0 +1,85 @@
+package org.microbit.android.partialflashing;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests MagicScanner with repeated and overlapping marker parts
+ *
+ * (c) 2017 - 2021, Micro:bit Educational Foundation and contributors
+ *
+ * SPDX-License-Identifier: MIT
+ */
+
+public class MagicScannerTest {
+
+    private static final String GAPPED = "FE307F59................9DD7B1C1";
+
+    private static List<String> scan(MagicScanner scanner, String hex) {
+        return scan(scanner, HexUtils.hexToBytes(hex), 0);
+    }
+
+    private static List<String> scan(MagicScanner scanner, byte[] data, int from) {
+        final List<String> found = new ArrayList<String>();
+        scanner.scan(data, from, data.length, new MagicScanner.Listener() {
+            @Override
+            public void onMarker(int marker, int position) {
+                found.add(marker + "@" + position);
+            }
+        });
+        return found;
+    }
+
+    @Test
+    public void findsGappedMarker() {
+        MagicScanner scanner = new MagicScanner(GAPPED);
+        assertEquals("[0@2]", scan(scanner, "0000" + "FE307F59" + "0102030405060708" + "9DD7B1C1" + "00").toString());
+    }
+
+    @Test
+    public void firstPartRepeatedInGap() {
+        // The second FE307F59 starts 4 bytes into the gap, so only the first one matches
+        MagicScanner scanner = new MagicScanner(GAPPED);
+        assertEquals("[0@0]", scan(scanner, "FE307F59" + "01020304" + "FE307F59" + "9DD7B1C1").toString());
+    }
+
+    @Test
+    public void firstPartRepeatedBefore() {
+        MagicScanner scanner = new MagicScanner(GAPPED);
+        assertEquals("[0@4]", scan(scanner, "FE307F59" + "FE307F59" + "0102030405060708" + "9DD7B1C1").toString());
+    }
+
+    @Test
+    public void wrongGapLength() {
+        MagicScanner scanner = new MagicScanner(GAPPED);
+        assertEquals("[]", scan(scanner, "FE307F59" + "01020304050607" + "9DD7B1C1").toString());
+        assertEquals("[]", scan(scanner, "FE307F59" + "010203040506070809" + "9DD7B1C1").toString());
+    }
+
+    @Test
+    public void overlappingMatches() {
+        // Each match's first part lies in the gap of the one before
+        MagicScanner scanner = new MagicScanner("AABB....AABB");
+        assertEquals("[0@0, 0@4]", scan(scanner, "AABB" + "0000" + "AABB" + "0000" + "AABB").toString());
+        assertEquals("[0@0, 0@2]", scan(scanner, "AABBAABBAABBAABB").toString());
+    }
+
+    @Test
+    public void sharedPrefixes() {
+        MagicScanner scanner = new MagicScanner("AABBCC", "AABB", "BBCCDD");
+        assertEquals("[1@1, 0@1, 2@2]", scan(scanner, "00AABBCCDD").toString());
+    }
+
+    @Test
+    public void startBeforeRange() {
+        // The first part lies before the scanned range
+        MagicScanner scanner = new MagicScanner("AABB..CCDD");
+        byte[] data = HexUtils.hexToBytes("AABB00CCDD");
+        assertEquals("[]", scan(scanner, data, 1).toString());
+        assertEquals("[0@0]", scan(scanner, data, 0).toString());
+    }
+}